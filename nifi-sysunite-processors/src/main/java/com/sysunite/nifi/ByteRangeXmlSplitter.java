@@ -0,0 +1,119 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.processor.Relationship;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Finds the byte ranges of all elements selected by the {@link StreamingXPathMatcher}, so they can be
+ * emitted with {@code session.clone(flowFile, offset, size)} and share the content of the original
+ * FlowFile instead of being serialized again. Ranges are handed on in document order, like DOM mode selects
+ * them, so a range nested in another selected element waits for its end tag. Scanning stops as soon as nothing
+ * more can be selected.
+ */
+final class ByteRangeXmlSplitter {
+
+  interface RangeHandler {
+
+    /**
+     * Called for the selected elements in the order of their start tags, once the end tag of the element
+     * and of all selected elements around it have been read.
+     */
+    void onRange(Relationship relationship, long offset, long size) throws IOException;
+
+    /**
+     * Called for the first element that has the attribute selected by a path.
+     */
+    void onAttribute(Relationship relationship, String value) throws IOException;
+  }
+
+  private final StreamingXPathMatcher matcher;
+
+  ByteRangeXmlSplitter(StreamingXPathMatcher matcher) {
+    this.matcher = matcher;
+  }
+
+  void split(InputStream in, final RangeHandler handler) throws IOException {
+
+    final XmlByteScanner scanner = new XmlByteScanner(in, matcher.needsAttributes());
+    final StreamingXPathMatcher.Attributes attributes = scanner::attribute;
+
+    final StreamingXPathMatcher.Cursor cursor = matcher.cursor();
+    // the ranges selected by every open element, from the document element down
+    final List<List<Range>> selected = new ArrayList<>();
+    // ranges in the order of their start tags, until they and the ones before them have ended
+    final Deque<Range> pending = new ArrayDeque<>();
+
+    scanner.scan(new XmlByteScanner.Handler() {
+
+      // selected elements whose end tag has not been read yet
+      private int open;
+
+      @Override
+      public void startElement(String qName, long offset) throws IOException {
+        StreamingXPathMatcher.Match[] matches = cursor.startElement(qName, attributes);
+
+        List<Range> ranges = Collections.emptyList();
+        for (StreamingXPathMatcher.Match match : matches) {
+          if (match.attribute == null) {
+            if (ranges.isEmpty()) {
+              ranges = new ArrayList<>(1);
+            }
+            Range range = new Range(match.relationship);
+            ranges.add(range);
+            pending.addLast(range);
+            open++;
+          } else {
+            String value = scanner.attribute(match.attribute);
+            if (value != null) {
+              handler.onAttribute(match.relationship, value);
+              cursor.satisfy(match);
+            }
+          }
+        }
+        selected.add(ranges);
+        stopWhenFinished();
+      }
+
+      @Override
+      public void endElement(String qName, long offset, long end) throws IOException {
+        cursor.endElement();
+        for (Range range : selected.remove(selected.size() - 1)) {
+          range.offset = offset;
+          range.size = end - offset;
+          open--;
+        }
+        while (!pending.isEmpty() && pending.peekFirst().size >= 0) {
+          Range range = pending.removeFirst();
+          handler.onRange(range.relationship, range.offset, range.size);
+        }
+        stopWhenFinished();
+      }
+
+      // an open element that was selected still needs its end tag
+      private void stopWhenFinished() {
+        if (open == 0 && cursor.isFinished()) {
+          scanner.stop();
+        }
+      }
+    });
+  }
+
+  private static final class Range {
+
+    final Relationship relationship;
+    long offset;
+    // -1 until the end tag has been read
+    long size = -1;
+
+    private Range(Relationship relationship) {
+      this.relationship = relationship;
+    }
+  }
+}
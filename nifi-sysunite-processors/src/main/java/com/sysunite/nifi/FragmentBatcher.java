@@ -0,0 +1,140 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Turns the nodes that are split off one incoming FlowFile into output FlowFiles. With more than one
+ * node per FlowFile the nodes of a relationship are collected together (for XML under a common root element), which keeps
+ * the number of FlowFiles (and provenance events) down for documents with many small nodes. Every output
+ * gets the usual fragment attributes, which are only complete once {@link #finish()} is called.
+ */
+final class FragmentBatcher {
+
+  static final String FRAGMENT_ID = "fragment.identifier";
+  static final String FRAGMENT_INDEX = "fragment.index";
+  static final String FRAGMENT_COUNT = "fragment.count";
+  static final String SEGMENT_ORIGINAL_FILENAME = "segment.original.filename";
+
+  interface NodeWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  private final ProcessSession session;
+  private final FlowFile parent;
+  private final int nodesPerFlowFile;
+  private final String mimeType;
+  private final byte[] header;
+  private final byte[] separator;
+  private final byte[] footer;
+
+  private final Map<Relationship, Batch> batches = new LinkedHashMap<>();
+
+  FragmentBatcher(ProcessSession session, FlowFile parent, int nodesPerFlowFile, String rootElement, OutputFormat format) {
+    this.session = session;
+    this.parent = parent;
+    this.nodesPerFlowFile = nodesPerFlowFile;
+    this.mimeType = format.getMimeType();
+    this.header = format.header(rootElement);
+    this.separator = format.separator();
+    this.footer = format.footer(rootElement);
+  }
+
+  boolean isBatching() {
+    return nodesPerFlowFile > 1;
+  }
+
+  void add(Relationship relationship, NodeWriter node) throws IOException {
+    final Batch batch = batch(relationship);
+
+    if (!isBatching()) {
+      FlowFile split = session.create(parent);
+      split = session.write(split, node::write);
+      batch.splits.add(split);
+      return;
+    }
+
+    if (batch.nodes > 0) {
+      batch.buffer.write(separator);
+    }
+    node.write(batch.buffer);
+    if (++batch.nodes == nodesPerFlowFile) {
+      flush(batch);
+    }
+  }
+
+  /**
+   * Registers a split that was already created from the parent, e.g. as a byte range of its content.
+   */
+  void add(Relationship relationship, FlowFile split) {
+    batch(relationship).splits.add(split);
+  }
+
+  /**
+   * Writes the remaining partial batches, completes the fragment attributes and transfers all outputs.
+   */
+  void finish() {
+    final String originalFilename = parent.getAttribute(CoreAttributes.FILENAME.key());
+
+    for (final Map.Entry<Relationship, Batch> entry : batches.entrySet()) {
+      final Batch batch = entry.getValue();
+      if (batch.nodes > 0) {
+        flush(batch);
+      }
+
+      final String fragmentId = UUID.randomUUID().toString();
+      final String fragmentCount = String.valueOf(batch.splits.size());
+
+      for (int i = 0; i < batch.splits.size(); i++) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(FRAGMENT_ID, fragmentId);
+        attributes.put(FRAGMENT_INDEX, String.valueOf(i));
+        attributes.put(FRAGMENT_COUNT, fragmentCount);
+        if (originalFilename != null) {
+          attributes.put(SEGMENT_ORIGINAL_FILENAME, originalFilename);
+        }
+        if (mimeType != null) {
+          attributes.put(CoreAttributes.MIME_TYPE.key(), mimeType);
+        }
+
+        final FlowFile split = session.putAllAttributes(batch.splits.get(i), attributes);
+        session.transfer(split, entry.getKey());
+      }
+    }
+    batches.clear();
+  }
+
+  private Batch batch(Relationship relationship) {
+    Batch batch = batches.get(relationship);
+    if (batch == null) {
+      batch = new Batch();
+      batches.put(relationship, batch);
+    }
+    return batch;
+  }
+
+  private void flush(final Batch batch) {
+    FlowFile split = session.create(parent);
+    split = session.write(split, out -> {
+      out.write(header);
+      batch.buffer.writeTo(out);
+      out.write(footer);
+    });
+    batch.splits.add(split);
+    batch.buffer.reset();
+    batch.nodes = 0;
+  }
+
+  private static final class Batch {
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final List<FlowFile> splits = new ArrayList<>();
+    private int nodes;
+  }
+}
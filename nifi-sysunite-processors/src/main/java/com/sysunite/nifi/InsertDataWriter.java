@@ -0,0 +1,152 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import org.apache.jena.atlas.lib.Tuple;
+import org.apache.jena.riot.system.StreamRDF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Turns parsed triples and quads into SPARQL INSERT DATA statements for the store, and hands them out a
+ * transaction at a time. Consecutive triples of the same graph go into one statement of at most
+ * {@code triplesPerStatement} triples; a transaction ends after the statement that reaches
+ * {@code transactionSize} triples, and at the end of the input.
+ *
+ * A blank node label only names the same node within one statement, so blank nodes are written as
+ * {@code <nodeID://...>} IRIs instead, which Virtuoso takes for blank nodes in every statement. Their labels
+ * are unique to the input, so a blank node of one input is never taken for a node of another.
+ */
+final class InsertDataWriter implements StreamRDF {
+
+  // the IRIs Virtuoso uses for blank nodes
+  static final String BLANK_NODE_PREFIX = "nodeID://";
+
+  interface Transactions {
+    /**
+     * Runs the statements as one transaction.
+     * @param triples the number of triples in the statements
+     */
+    void send(List<String> statements, long triples);
+  }
+
+  private final Node defaultGraph;
+  private final int triplesPerStatement;
+  private final long transactionSize;
+  private final Transactions transactions;
+
+  private final Map<Node, String> blankNodes = new HashMap<>();
+  // in front of the number of every blank node of the input
+  private final String blankNodeLabel = BLANK_NODE_PREFIX + "b" + UUID.randomUUID().toString().replace("-", "") + "_";
+
+  private List<String> statements = new ArrayList<>();
+  private long transactionTriples;
+
+  private final StringBuilder statement = new StringBuilder();
+  private Node statementGraph;
+  private int statementTriples;
+
+  /**
+   * @param defaultGraph the graph of triples, and of quads in the default graph
+   */
+  InsertDataWriter(Node defaultGraph, int triplesPerStatement, long transactionSize, Transactions transactions) {
+    this.defaultGraph = defaultGraph;
+    this.triplesPerStatement = triplesPerStatement;
+    this.transactionSize = transactionSize;
+    this.transactions = transactions;
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void triple(Triple triple) {
+    add(defaultGraph, triple.getSubject(), triple.getPredicate(), triple.getObject());
+  }
+
+  @Override
+  public void quad(Quad quad) {
+    add(quad.isDefaultGraph() ? defaultGraph : quad.getGraph(), quad.getSubject(), quad.getPredicate(), quad.getObject());
+  }
+
+  @Override
+  public void tuple(Tuple<Node> tuple) {
+    throw new IllegalArgumentException("Tuples cannot be loaded, only triples and quads");
+  }
+
+  @Override
+  public void base(String base) {
+  }
+
+  @Override
+  public void prefix(String prefix, String iri) {
+    // the statements are written with full IRIs
+  }
+
+  @Override
+  public void finish() {
+    endStatement();
+    endTransaction();
+  }
+
+  private void add(Node graph, Node subject, Node predicate, Node object) {
+    if (statementTriples > 0 && !graph.equals(statementGraph)) {
+      endStatement();
+    }
+    if (statementTriples == 0) {
+      statementGraph = graph;
+      statement.append("INSERT DATA { GRAPH ").append(FmtUtils.stringForNode(graph)).append(" {\n");
+    }
+    statement.append(format(subject)).append(' ')
+      .append(format(predicate)).append(' ')
+      .append(format(object)).append(" .\n");
+
+    if (++statementTriples == triplesPerStatement) {
+      endStatement();
+    }
+  }
+
+  private void endStatement() {
+    if (statementTriples == 0) {
+      return;
+    }
+    statements.add(statement.append("} }").toString());
+    statement.setLength(0);
+    transactionTriples += statementTriples;
+    statementTriples = 0;
+
+    if (transactionTriples >= transactionSize) {
+      endTransaction();
+    }
+  }
+
+  private void endTransaction() {
+    if (statements.isEmpty()) {
+      return;
+    }
+    final List<String> transaction = statements;
+    final long triples = transactionTriples;
+    statements = new ArrayList<>();
+    transactionTriples = 0;
+    transactions.send(transaction, triples);
+  }
+
+  private String format(Node node) {
+    if (!node.isBlank()) {
+      return FmtUtils.stringForNode(node);
+    }
+    String label = blankNodes.get(node);
+    if (label == null) {
+      label = "<" + blankNodeLabel + blankNodes.size() + ">";
+      blankNodes.put(node, label);
+    }
+    return label;
+  }
+}
@@ -0,0 +1,99 @@
+package com.sysunite.nifi;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The prefixes of a query, to compact IRIs in its results. The namespaces are kept in a trie over their
+ * characters, so finding the longest namespace an IRI starts with takes one walk down the IRI regardless of
+ * the number of prefixes.
+ */
+final class IriPrefixes {
+
+  private static final class Node {
+
+    // sorted, children[i] follows character keys[i]
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    // the namespace that ends here
+    private String namespace;
+    private String prefix;
+
+    private Node child(char key) {
+      final int i = Arrays.binarySearch(keys, key);
+      return i < 0 ? null : children[i];
+    }
+
+    private Node addChild(char key) {
+      final int i = Arrays.binarySearch(keys, key);
+      if (i >= 0) {
+        return children[i];
+      }
+      final int at = -i - 1;
+      final char[] newKeys = new char[keys.length + 1];
+      final Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, at);
+      System.arraycopy(children, 0, newChildren, 0, at);
+      newKeys[at] = key;
+      newChildren[at] = new Node();
+      System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+      System.arraycopy(children, at, newChildren, at + 1, children.length - at);
+      keys = newKeys;
+      children = newChildren;
+      return newChildren[at];
+    }
+  }
+
+  private final Node root = new Node();
+  private final boolean empty;
+  private final String header;
+
+  /**
+   * @param prefixes namespace -> prefix
+   */
+  IriPrefixes(Map<String, String> prefixes) {
+    final StringBuilder header = new StringBuilder();
+    for (final Map.Entry<String, String> entry : new TreeMap<>(prefixes).entrySet()) {
+      Node node = root;
+      for (int i = 0; i < entry.getKey().length(); i++) {
+        node = node.addChild(entry.getKey().charAt(i));
+      }
+      node.namespace = entry.getKey();
+      node.prefix = entry.getValue();
+
+      header.append("PREFIX ").append(entry.getValue()).append(": <").append(entry.getKey()).append(">\n");
+    }
+    this.empty = prefixes.isEmpty();
+    this.header = header.toString();
+  }
+
+  /**
+   * @return the PREFIX declarations that start the query
+   */
+  String header() {
+    return header;
+  }
+
+  /**
+   * @return the value as 'prefix:name' for the longest namespace it starts with, or the value itself
+   */
+  String shorten(String value) {
+    if (value == null || empty) {
+      return value;
+    }
+
+    Node match = null;
+    Node node = root;
+    for (int i = 0; i < value.length(); i++) {
+      node = node.child(value.charAt(i));
+      if (node == null) {
+        break;
+      }
+      if (node.namespace != null) {
+        match = node;
+      }
+    }
+    return match == null ? value : match.prefix + ":" + value.substring(match.namespace.length());
+  }
+}
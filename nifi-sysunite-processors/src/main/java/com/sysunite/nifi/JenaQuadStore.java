@@ -0,0 +1,342 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DynamicDatasets;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.modify.request.QuadDataAcc;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDataInsert;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.update.Update;
+import com.hp.hpl.jena.update.UpdateAction;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+import virtuoso.jena.driver.TransactionFailedException;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Jena dataset in the same process, in memory or in a TDB directory, so the processors can be tested and
+ * benchmarked without a Virtuoso server.
+ *
+ * Like Virtuoso, a query that names no graphs reads from the union of all named graphs. Queries run under the read
+ * lock of the dataset, until their connection is handed back, and updates under its write lock. Like Virtuoso,
+ * updates take {@code <nodeID://...>} IRIs in INSERT DATA for blank nodes. Prepared queries are Virtuoso specific
+ * and not supported, and an update that fails halfway is not rolled back.
+ */
+public final class JenaQuadStore implements QuadStore {
+
+  private final Dataset dataset;
+  private final String address;
+
+  /**
+   * @param address the name of the store in provenance events
+   */
+  public JenaQuadStore(Dataset dataset, String address) {
+    this.dataset = dataset;
+    this.address = address;
+  }
+
+  /**
+   * @return an empty store in memory
+   */
+  public static JenaQuadStore inMemory() {
+    return new JenaQuadStore(DatasetFactory.createMem(), "memory:");
+  }
+
+  /**
+   * @return the Jena dataset of the store, to fill it or check it directly
+   */
+  public Dataset getDataset() {
+    return dataset;
+  }
+
+  @Override
+  public QuadStore.Connection borrow(long timeout, TimeUnit unit) {
+    // the dataset is used in place, there are no connections to wait for
+    return new Connection();
+  }
+
+  @Override
+  public String getDefaultGraph() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+    dataset.close();
+  }
+
+  /**
+   * @return the insert with the {@code <nodeID://...>} IRIs as blank nodes, the same label is the same node in every update
+   */
+  private static UpdateDataInsert blankNodes(UpdateDataInsert insert) {
+    final QuadDataAcc quads = new QuadDataAcc();
+    for (final Quad quad : insert.getQuads()) {
+      quads.addQuad(new Quad(quad.getGraph(), blankNode(quad.getSubject()), quad.getPredicate(), blankNode(quad.getObject())));
+    }
+    return new UpdateDataInsert(quads);
+  }
+
+  private static Node blankNode(Node node) {
+    if (node.isURI() && node.getURI().startsWith(InsertDataWriter.BLANK_NODE_PREFIX)) {
+      return NodeFactory.createAnon(new AnonId(node.getURI().substring(InsertDataWriter.BLANK_NODE_PREFIX.length())));
+    }
+    return node;
+  }
+
+  private final class Connection implements QuadStore.Connection {
+
+    private volatile QueryExecution execution;
+    private volatile boolean cancelled;
+    private boolean locked;
+
+    @Override
+    public String getAddress() {
+      return address;
+    }
+
+    @Override
+    public Result select(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                         int fetchSize, long timeoutMillis) throws SQLException {
+      final QueryExecution execution = execute(query, defaultGraphs, namedGraphs, parameters, timeoutMillis);
+      try {
+        final com.hp.hpl.jena.query.ResultSet result = execution.execSelect();
+        final List<String> variables = result.getResultVars();
+        return new Rows(variables, new Iterator<Node[]>() {
+          @Override
+          public boolean hasNext() {
+            return result.hasNext();
+          }
+
+          @Override
+          public Node[] next() {
+            final Binding binding = result.nextBinding();
+            final Node[] row = new Node[variables.size()];
+            for (int i = 0; i < row.length; i++) {
+              row[i] = binding.get(Var.alloc(variables.get(i)));
+            }
+            return row;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        });
+      } catch (QueryException e) {
+        throw failure(e);
+      }
+    }
+
+    @Override
+    public Result construct(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                            int fetchSize, long timeoutMillis) throws SQLException {
+      final QueryExecution execution = execute(query, defaultGraphs, namedGraphs, parameters, timeoutMillis);
+      try {
+        final Iterator<Triple> triples = execution.getQuery().isDescribeType() ? execution.execDescribeTriples() : execution.execConstructTriples();
+        return new Rows(Arrays.asList("s", "p", "o"), new Iterator<Node[]>() {
+          @Override
+          public boolean hasNext() {
+            return triples.hasNext();
+          }
+
+          @Override
+          public Node[] next() {
+            final Triple triple = triples.next();
+            return new Node[]{triple.getSubject(), triple.getPredicate(), triple.getObject()};
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        });
+      } catch (QueryException e) {
+        throw failure(e);
+      }
+    }
+
+    private QueryExecution execute(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                                   long timeoutMillis) throws SQLException {
+      if (parameters != null) {
+        throw new SQLFeatureNotSupportedException("Prepared queries need a Virtuoso server");
+      }
+      close();
+
+      final Query parsed;
+      try {
+        parsed = QueryFactory.create(query);
+      } catch (QueryException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+
+      dataset.getLock().enterCriticalSection(Lock.READ);
+      locked = true;
+      final QueryExecution execution = QueryExecutionFactory.create(parsed, graphs(defaultGraphs, namedGraphs));
+      if (timeoutMillis > 0) {
+        execution.setTimeout(timeoutMillis);
+      }
+      this.execution = execution;
+      cancelled = false;
+      return execution;
+    }
+
+    @Override
+    public void update(List<String> updates, int batchSize, int retries) {
+      dataset.getLock().enterCriticalSection(Lock.WRITE);
+      try {
+        for (final String update : updates) {
+          final UpdateRequest request = new UpdateRequest();
+          for (final Update operation : UpdateFactory.create(update).getOperations()) {
+            request.add(operation instanceof UpdateDataInsert ? blankNodes((UpdateDataInsert) operation) : operation);
+          }
+          UpdateAction.execute(request, dataset);
+        }
+        TDB.sync(dataset);
+      } catch (JenaException e) {
+        throw new TransactionFailedException("Update of " + updates.size() + " statements failed", e);
+      } finally {
+        dataset.getLock().leaveCriticalSection();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      final QueryExecution execution = this.execution;
+      if (execution != null) {
+        cancelled = true;
+        execution.abort();
+      }
+    }
+
+    @Override
+    public void release() {
+      close();
+    }
+
+    @Override
+    public boolean invalidate() {
+      // the dataset is in the same process, so a failure is always the query's
+      close();
+      return false;
+    }
+
+    private void close() {
+      final QueryExecution execution = this.execution;
+      this.execution = null;
+      if (execution != null) {
+        execution.close();
+      }
+      if (locked) {
+        locked = false;
+        dataset.getLock().leaveCriticalSection();
+      }
+    }
+
+    private SQLException failure(QueryException e) {
+      if (e instanceof QueryCancelledException) {
+        return cancelled ? new SQLException("Query cancelled", e) : new SQLTimeoutException("Query timed out", e);
+      }
+      return new SQLException(e.getMessage(), e);
+    }
+
+    private final class Rows implements Result {
+
+      private final List<String> variables;
+      private final Iterator<Node[]> rows;
+      private Node[] row;
+
+      private Rows(List<String> variables, Iterator<Node[]> rows) {
+        this.variables = variables;
+        this.rows = rows;
+      }
+
+      @Override
+      public List<String> getVariables() {
+        return variables;
+      }
+
+      @Override
+      public boolean next() throws SQLException {
+        try {
+          if (!rows.hasNext()) {
+            row = null;
+            return false;
+          }
+          row = rows.next();
+          return true;
+        } catch (QueryException e) {
+          throw failure(e);
+        }
+      }
+
+      @Override
+      public String getString(int column) {
+        final Node node = row[column - 1];
+        if (node == null) {
+          return null;
+        }
+        if (node.isURI()) {
+          return node.getURI();
+        }
+        if (node.isLiteral()) {
+          return node.getLiteralLexicalForm();
+        }
+        return "_:" + node.getBlankNodeLabel();
+      }
+
+      @Override
+      public Node getNode(int column) {
+        return row[column - 1];
+      }
+    }
+  }
+
+  /**
+   * @return the dataset restricted to the graphs, or the union of all graphs if there are none
+   */
+  private Dataset graphs(List<String> defaultGraphs, List<String> namedGraphs) {
+    final DatasetGraph graphs = dataset.asDatasetGraph();
+    final List<Node> defaults = new ArrayList<>();
+    final List<Node> named = new ArrayList<>();
+    if (defaultGraphs.isEmpty() && namedGraphs.isEmpty()) {
+      final Iterator<Node> names = graphs.listGraphNodes();
+      while (names.hasNext()) {
+        final Node name = names.next();
+        defaults.add(name);
+        named.add(name);
+      }
+    } else {
+      for (final String graph : defaultGraphs) {
+        defaults.add(NodeFactory.createURI(graph));
+      }
+      for (final String graph : namedGraphs) {
+        named.add(NodeFactory.createURI(graph));
+      }
+    }
+    return DatasetFactory.create(DynamicDatasets.dynamicDataset(defaults, named, graphs, false));
+  }
+}
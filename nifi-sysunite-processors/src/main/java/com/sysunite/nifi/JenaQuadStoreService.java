@@ -0,0 +1,64 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"sparql, jena, tdb, connection"})
+@CapabilityDescription("A Jena dataset in the NiFi process, in memory or in a TDB directory, in place of a Virtuoso server. "
+  + "Meant to test and benchmark flows without a server; prepared statements are not supported.")
+public class JenaQuadStoreService extends AbstractControllerService implements VirtuosoConnectionService {
+
+  public static final PropertyDescriptor DIRECTORY = new PropertyDescriptor
+    .Builder().name("directory")
+    .description("The TDB directory of the dataset, which is created if it does not exist. Without it, the dataset is kept "
+      + "in memory and is empty every time the service is enabled.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  private static final List<PropertyDescriptor> DESCRIPTORS = Collections.singletonList(DIRECTORY);
+
+  private volatile JenaQuadStore store;
+
+  @Override
+  protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return DESCRIPTORS;
+  }
+
+  @OnEnabled
+  public void onEnabled(final ConfigurationContext context) {
+    final String directory = context.getProperty(DIRECTORY).getValue();
+    store = directory != null ? new JenaQuadStore(TDBFactory.createDataset(directory), "tdb:" + directory) : JenaQuadStore.inMemory();
+  }
+
+  @OnDisabled
+  public void onDisabled() {
+    if (store != null) {
+      store.close();
+      store = null;
+    }
+  }
+
+  @Override
+  public JenaQuadStore getStore() {
+    return store;
+  }
+
+  @Override
+  public long getMaxWait(TimeUnit unit) {
+    // connections are not pooled, so they are never waited for
+    return 0;
+  }
+}
@@ -0,0 +1,130 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.w3c.dom.Node;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How split nodes are written, and how several of them are combined into one FlowFile.
+ */
+enum OutputFormat {
+
+  XML(null) {
+    @Override
+    void write(Node node, boolean batched, OutputStream out) {
+      final Transformer transformer = TRANSFORMER.get();
+      // inside a batch only the batch itself starts with a declaration
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, batched ? "yes" : "no");
+      try {
+        transformer.transform(new DOMSource(node), new StreamResult(out));
+      } catch (TransformerException e) {
+        throw new ProcessException(e);
+      }
+    }
+
+    @Override
+    byte[] header(String rootElement) {
+      return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + rootElement + ">").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    byte[] separator() {
+      return new byte[0];
+    }
+
+    @Override
+    byte[] footer(String rootElement) {
+      return ("</" + rootElement + ">").getBytes(StandardCharsets.UTF_8);
+    }
+  },
+
+  /**
+   * One JSON object per node, a batch is an array of them.
+   */
+  JSON("application/json") {
+    @Override
+    byte[] header(String rootElement) {
+      return "[".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    byte[] separator() {
+      return ",".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    byte[] footer(String rootElement) {
+      return "]".getBytes(StandardCharsets.UTF_8);
+    }
+  },
+
+  /**
+   * One JSON object per node, a batch has one per line.
+   */
+  NDJSON("application/x-ndjson") {
+    @Override
+    byte[] header(String rootElement) {
+      return new byte[0];
+    }
+
+    @Override
+    byte[] separator() {
+      return "\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    byte[] footer(String rootElement) {
+      return "\n".getBytes(StandardCharsets.UTF_8);
+    }
+  };
+
+  // Transformer is not thread safe, so every (task or parallel mode) thread creates its own once
+  private static final ThreadLocal<Transformer> TRANSFORMER = ThreadLocal.withInitial(() -> {
+    try {
+      return TransformerFactory.newInstance().newTransformer();
+    } catch (TransformerConfigurationException e) {
+      throw new ProcessException(e);
+    }
+  });
+
+  private final String mimeType;
+
+  OutputFormat(String mimeType) {
+    this.mimeType = mimeType;
+  }
+
+  /**
+   * @return the mime.type of the splits, or null to leave it as it was
+   */
+  String getMimeType() {
+    return mimeType;
+  }
+
+  boolean isJson() {
+    return this != XML;
+  }
+
+  /**
+   * Writes a node that was selected in a DOM.
+   * @param batched whether the node is written into a batch of several nodes
+   */
+  void write(Node node, boolean batched, OutputStream out) throws IOException {
+    XmlToJson.write(node, out);
+  }
+
+  abstract byte[] header(String rootElement);
+
+  abstract byte[] separator();
+
+  abstract byte[] footer(String rootElement);
+}
@@ -0,0 +1,275 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Splits documents that are a long sequence of records below one root element on all cores. The raw bytes
+ * are scanned for the boundaries of the root's child elements; consecutive records are cut into chunks of
+ * about the configured size, and every chunk is parsed into a DOM of its own (the prolog and root start tag
+ * of the document followed by the records) and evaluated against the {@link XPathTable} in a fork/join
+ * pool. Results are handed back on the calling thread in document order.
+ *
+ * Since every chunk is a separate document, XPaths that relate records to each other (positions, counts,
+ * siblings) only see the records of their chunk, and content directly below the root between chunks is
+ * not visible to any of them.
+ */
+final class ParallelXmlSplitter {
+
+  interface ChunkHandler {
+
+    /**
+     * Called for every selected node, serialized, in document order per relationship.
+     */
+    void onNode(Relationship relationship, byte[] node) throws IOException;
+
+    /**
+     * Called for every chunk in which an XPath that selects a value has a non empty value, in document order.
+     */
+    void onValue(Relationship relationship, String value) throws IOException;
+  }
+
+  private static final class ChunkResult {
+    private final List<Relationship> relationships = new ArrayList<>();
+    private final List<byte[]> nodes = new ArrayList<>();
+    private final Map<Relationship, String> values = new LinkedHashMap<>();
+  }
+
+  private final XPathTable table;
+  private final ForkJoinPool pool;
+  private final long chunkSize;
+
+  ParallelXmlSplitter(XPathTable table, ForkJoinPool pool, long chunkSize) {
+    this.table = table;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @param batched whether the nodes are written into batches of several nodes
+   */
+  void split(InputStream in, final OutputFormat format, final boolean batched, final ChunkHandler handler) throws IOException {
+
+    final CapturingInputStream capture = new CapturingInputStream(in);
+    final XmlByteScanner scanner = new XmlByteScanner(capture);
+
+    // chunks are evaluated in order of submission, a few more than there are threads are kept in flight
+    final Deque<ForkJoinTask<ChunkResult>> pending = new ArrayDeque<>();
+    final int maxPending = 2 * pool.getParallelism();
+
+    try {
+      scanner.scan(new XmlByteScanner.Handler() {
+
+        private int depth;
+        private byte[] prefix;
+        private byte[] suffix;
+        private long rootEnd;
+        private long chunkStart = -1;
+        private long recordEnd;
+        private boolean submitted;
+
+        @Override
+        public void startElement(String qName, long offset) throws IOException {
+          depth++;
+          if (depth == 1) {
+            // the prolog (declaration, doctype) and the root start tag open every chunk
+            rootEnd = scanner.position();
+            prefix = capture.copy(0, rootEnd);
+            suffix = ("</" + qName + ">").getBytes(StandardCharsets.UTF_8);
+            capture.discard(rootEnd);
+          } else if (depth == 2 && chunkStart < 0) {
+            chunkStart = offset;
+          }
+        }
+
+        @Override
+        public void endElement(String qName, long offset, long end) throws IOException {
+          if (depth == 2 && end - chunkStart >= chunkSize) {
+            cut(end);
+          } else if (depth == 1) {
+            if (chunkStart >= 0) {
+              cut(recordEnd);
+            } else if (!submitted) {
+              // no records, the values of the root can still be selected; an empty root tag is a document on its own
+              submit(end == rootEnd ? prefix : concat(prefix, new byte[0], suffix));
+            }
+          }
+          if (depth == 2) {
+            recordEnd = end;
+          }
+          depth--;
+        }
+
+        private void cut(long end) throws IOException {
+          final byte[] records = capture.copy(chunkStart, end);
+          capture.discard(end);
+          chunkStart = -1;
+          submit(concat(prefix, records, suffix));
+        }
+
+        private void submit(final byte[] chunk) throws IOException {
+          submitted = true;
+          pending.add(pool.submit(() -> evaluate(chunk, format, batched)));
+          while (pending.size() > maxPending) {
+            emit(pending.poll(), handler);
+          }
+        }
+      });
+
+      while (!pending.isEmpty()) {
+        emit(pending.poll(), handler);
+      }
+    } finally {
+      for (final ForkJoinTask<ChunkResult> task : pending) {
+        task.cancel(true);
+      }
+    }
+  }
+
+  private static void emit(ForkJoinTask<ChunkResult> task, ChunkHandler handler) throws IOException {
+    final ChunkResult result;
+    try {
+      result = task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ProcessException) {
+        throw (ProcessException) e.getCause();
+      }
+      throw new ProcessException(e.getCause());
+    }
+
+    for (int i = 0; i < result.nodes.size(); i++) {
+      handler.onNode(result.relationships.get(i), result.nodes.get(i));
+    }
+    for (final Map.Entry<Relationship, String> value : result.values.entrySet()) {
+      handler.onValue(value.getKey(), value.getValue());
+    }
+  }
+
+  private ChunkResult evaluate(byte[] chunk, OutputFormat format, boolean batched) throws IOException {
+    final DocumentBuilder builder = XmlSplit.DOCUMENT_BUILDER.get();
+    builder.reset();
+
+    final Document document;
+    try {
+      document = builder.parse(new ByteArrayInputStream(chunk));
+    } catch (SAXException e) {
+      throw new ProcessException("invalid xml file content", e);
+    }
+
+    final ChunkResult result = new ChunkResult();
+    table.evaluate(document, new XPathTable.Results() {
+
+      @Override
+      public void onValue(Relationship relationship, String value) {
+        if (!value.isEmpty()) {
+          result.values.put(relationship, value);
+        }
+      }
+
+      @Override
+      public void onNode(Relationship relationship, Node node) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.write(node, batched, out);
+        result.relationships.add(relationship);
+        result.nodes.add(out.toByteArray());
+      }
+    });
+    return result;
+  }
+
+  private static byte[] concat(byte[] prefix, byte[] records, byte[] suffix) {
+    final byte[] chunk = new byte[prefix.length + records.length + suffix.length];
+    System.arraycopy(prefix, 0, chunk, 0, prefix.length);
+    System.arraycopy(records, 0, chunk, prefix.length, records.length);
+    System.arraycopy(suffix, 0, chunk, prefix.length + records.length, suffix.length);
+    return chunk;
+  }
+
+  /**
+   * Keeps the bytes that were read from the content since the last discard, so the records that the
+   * scanner found can be copied out.
+   */
+  private static final class CapturingInputStream extends FilterInputStream {
+
+    private byte[] data = new byte[128 * 1024];
+    // offset in the content of data[0]
+    private long start;
+    private int length;
+
+    private CapturingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int read = super.read(b, off, len);
+      if (read > 0) {
+        if (length + read > data.length) {
+          data = Arrays.copyOf(data, Math.max(data.length * 2, length + read));
+        }
+        System.arraycopy(b, off, data, length, read);
+        length += read;
+      }
+      return read;
+    }
+
+    // skipped bytes are read, so they are captured like all others
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      final byte[] skipped = new byte[(int) Math.min(n, 8192)];
+      long remaining = n;
+      while (remaining > 0) {
+        final int read = read(skipped, 0, (int) Math.min(remaining, skipped.length));
+        if (read < 0) {
+          break;
+        }
+        remaining -= read;
+      }
+      return n - remaining;
+    }
+
+    // a reset would capture the same bytes twice
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private byte[] copy(long from, long to) {
+      return Arrays.copyOfRange(data, (int) (from - start), (int) (to - start));
+    }
+
+    private void discard(long before) {
+      final int discarded = (int) (before - start);
+      System.arraycopy(data, discarded, data, 0, length - discarded);
+      length -= discarded;
+      start = before;
+    }
+  }
+}
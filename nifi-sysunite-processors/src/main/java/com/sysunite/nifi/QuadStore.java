@@ -0,0 +1,109 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.Node;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The store that VirtuosoClient queries and VirtuosoBulkLoader loads into. Queries are plain SPARQL, the graphs
+ * they read from are passed separately, so every store can restrict them in its own way. {@link VirtuosoQuadStore}
+ * is a Virtuoso server over JDBC, {@link JenaQuadStore} a Jena dataset in the same process, in memory or in a TDB
+ * directory, to run the processors without a server.
+ */
+public interface QuadStore {
+
+  /**
+   * Takes a connection to the store. Every connection has to be handed back with {@link Connection#release()},
+   * or with {@link Connection#invalidate()} if it failed.
+   * @throws java.sql.SQLTimeoutException if no connection became available in time
+   */
+  Connection borrow(long timeout, TimeUnit unit) throws SQLException;
+
+  /**
+   * @return the graph queries read from when they name no graphs, or null if they read from all graphs
+   */
+  String getDefaultGraph();
+
+  /**
+   * Closes the store; connections that are still borrowed are closed when they are handed back.
+   */
+  void close();
+
+  interface Connection {
+
+    /**
+     * @return where the connection goes, for provenance
+     */
+    String getAddress();
+
+    /**
+     * Runs a SELECT query.
+     * @param defaultGraphs the graphs the query reads from, all graphs if there are none
+     * @param namedGraphs the graphs the query can name in a GRAPH clause
+     * @param parameters the values of the markers of a prepared query, or null to run the query as it is
+     * @param fetchSize the number of rows that are fetched at a time, 0 for the default of the store
+     * @param timeoutMillis how long the query may run, 0 for no limit
+     * @throws java.sql.SQLTimeoutException if the query ran longer than the timeout
+     */
+    Result select(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                  int fetchSize, long timeoutMillis) throws SQLException;
+
+    /**
+     * Runs a CONSTRUCT or DESCRIBE query, its triples are the rows of the result, with columns subject, predicate and object.
+     * @see #select
+     */
+    Result construct(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                     int fetchSize, long timeoutMillis) throws SQLException;
+
+    /**
+     * Runs SPARQL updates in one transaction, sent to the store in batches of {@code batchSize}. When the
+     * transaction deadlocks with another one, it is run again, at most {@code retries} times.
+     * @throws virtuoso.jena.driver.TransactionFailedException if the transaction is rolled back
+     */
+    void update(List<String> updates, int batchSize, int retries);
+
+    /**
+     * Cancels the running query, from another thread.
+     */
+    void cancel() throws SQLException;
+
+    /**
+     * Hands the connection back for reuse.
+     */
+    void release();
+
+    /**
+     * Hands back a connection that failed, it is closed instead of reused.
+     * @return true if the connection itself stopped working, rather than the query failing on it, so the query
+     *         may succeed on another connection
+     */
+    boolean invalidate();
+  }
+
+  interface Result {
+
+    /**
+     * @return the names of the columns, in order
+     */
+    List<String> getVariables() throws SQLException;
+
+    /**
+     * Moves to the next row.
+     * @return false after the last row
+     */
+    boolean next() throws SQLException;
+
+    /**
+     * @return the value in a column of the current row, counted from 1: the IRI of an IRI, the text of a literal,
+     * or null if the variable is unbound
+     */
+    String getString(int column) throws SQLException;
+
+    /**
+     * @return the node in a column of the current row, counted from 1, or null if the variable is unbound
+     */
+    Node getNode(int column) throws SQLException;
+  }
+}
@@ -0,0 +1,120 @@
+package com.sysunite.nifi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The formatted result rows of recent queries, keyed by the complete query text. Entries expire after the
+ * time to live, and the least recently used entries are evicted when there are more than the maximum number
+ * of entries or their estimated size exceeds the maximum. Shared by all task threads of a processor.
+ */
+final class QueryResultCache {
+
+  private static final class Entry {
+
+    private final List<String> rows;
+    private final long size;
+    private final long expires;
+
+    private Entry(List<String> rows, long size, long expires) {
+      this.rows = rows;
+      this.size = size;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Collects the rows of a result while it is read, as long as they fit in the cache.
+   */
+  final class Collector {
+
+    private final String key;
+    private List<String> rows = new ArrayList<>();
+    private long size;
+
+    private Collector(String key) {
+      this.key = key;
+      this.size = size(key);
+    }
+
+    void add(String row) {
+      if (rows == null) {
+        return;
+      }
+      size += size(row);
+      if (size > maxSize) {
+        // too large to cache, stop collecting
+        rows = null;
+      } else {
+        rows.add(row);
+      }
+    }
+
+    /**
+     * Caches the collected rows, to be called once the whole result has been read.
+     */
+    void commit() {
+      if (rows != null) {
+        put(key, Collections.unmodifiableList(rows), size);
+      }
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxSize;
+  private final long ttlMillis;
+
+  // in access order, the eldest entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+
+  QueryResultCache(int maxEntries, long maxSize, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * @return the rows of the query, or null if they are not cached (anymore)
+   */
+  synchronized List<String> get(String key) {
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() >= entry.expires) {
+      entries.remove(key);
+      size -= entry.size;
+      return null;
+    }
+    return entry.rows;
+  }
+
+  Collector collector(String key) {
+    return new Collector(key);
+  }
+
+  private synchronized void put(String key, List<String> rows, long entrySize) {
+    final Entry old = entries.remove(key);
+    if (old != null) {
+      size -= old.size;
+    }
+    entries.put(key, new Entry(rows, entrySize, System.currentTimeMillis() + ttlMillis));
+    size += entrySize;
+
+    final Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (entries.size() > maxEntries || size > maxSize) {
+      size -= eldest.next().getValue().size;
+      eldest.remove();
+    }
+  }
+
+  // an estimate of the heap used by a string in a list
+  private static long size(String value) {
+    return 48 + 2L * value.length();
+  }
+}
@@ -0,0 +1,262 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A SPARQL query with variables that are bound to flowfile attributes. The query is cut up once, at the
+ * occurrences of the bound variables outside of strings, IRIs and comments, so binding a flowfile only
+ * joins the parts with the values. Values are bound as properly escaped string literals or IRIs, so an
+ * attribute cannot change the structure of the query.
+ *
+ * For a prepared statement, the variables are replaced by Virtuoso parameter markers instead: the text of
+ * the query is then the same for every flowfile and the values are passed separately. A select query can
+ * also be run for several flowfiles at once, with the values of all of them in a VALUES block at the start of
+ * its WHERE clause.
+ */
+final class QueryTemplate {
+
+  private static final String IRI_FORBIDDEN = "<>\"{}|^`\\";
+
+  // a query with one of these works on all of its rows together, so its result for a batch is not the results of the flowfiles
+  private static final Set<String> NOT_PER_ROW = new HashSet<>(Arrays.asList(
+    "LIMIT", "OFFSET", "GROUP", "HAVING", "COUNT", "SUM", "MIN", "MAX", "AVG", "SAMPLE", "GROUP_CONCAT", "SELECT"));
+
+  // parts.size() == variables.size() + 1, the variables go in between the parts
+  private final List<String> parts = new ArrayList<>();
+  private final List<String> variables = new ArrayList<>();
+  private final List<Boolean> iris = new ArrayList<>();
+  // each bound variable once, and whether it is an IRI
+  private final Map<String, Boolean> bound = new LinkedHashMap<>();
+
+  private final String query;
+  // where variables can be added to the select clause, -1 if the query is not a select query
+  private int selectEnd = -1;
+  private boolean selectAll;
+  // after the '{' that opens the WHERE clause of a select query, -1 if there is none
+  private int whereStart = -1;
+  // whether the query has a sub query, aggregates or LIMIT, OFFSET, GROUP BY or HAVING
+  private boolean notPerRow;
+
+  /**
+   * @param literals the variables that are bound as string literals
+   * @param iris the variables that are bound as IRIs
+   */
+  QueryTemplate(String query, Set<String> literals, Set<String> iris) {
+    this.query = query;
+    int partStart = 0;
+    int i = 0;
+    while (i < query.length()) {
+      final char c = query.charAt(i);
+      if (c == '"' || c == '\'') {
+        i = skipString(query, i);
+      } else if (c == '<') {
+        i = skipIri(query, i);
+      } else if (c == '#') {
+        final int end = query.indexOf('\n', i);
+        i = end < 0 ? query.length() : end;
+      } else if ((c == '?' || c == '$') && i + 1 < query.length() && isNameChar(query.charAt(i + 1))) {
+        int end = i + 1;
+        while (end < query.length() && isNameChar(query.charAt(end))) {
+          end++;
+        }
+        final String name = query.substring(i + 1, end);
+        if (literals.contains(name) || iris.contains(name)) {
+          parts.add(query.substring(partStart, i));
+          variables.add(name);
+          this.iris.add(iris.contains(name));
+          bound.put(name, iris.contains(name));
+          partStart = end;
+        }
+        i = end;
+      } else if (Character.isLetter(c) && (i == 0 || !isNameChar(query.charAt(i - 1)) && query.charAt(i - 1) != ':')) {
+        final int end = wordEnd(query, i);
+        final String word = query.substring(i, end).toUpperCase(Locale.ROOT);
+        // a word followed by ':' is a prefix
+        final boolean keyword = end == query.length() || query.charAt(end) != ':';
+        if (keyword && selectEnd >= 0 && NOT_PER_ROW.contains(word)) {
+          notPerRow = true;
+        } else if (keyword && selectEnd < 0 && word.equals("SELECT")) {
+          findSelectEnd(end);
+        }
+        i = end;
+      } else if (c == '{' && selectEnd >= 0 && whereStart < 0) {
+        whereStart = ++i;
+      } else {
+        i++;
+      }
+    }
+    parts.add(query.substring(partStart));
+  }
+
+  /**
+   * @return the query with the values of the attributes in place of the variables
+   * @throws IllegalArgumentException if an attribute is missing or is not a valid IRI
+   */
+  String bind(Map<String, String> attributes) {
+    final StringBuilder query = new StringBuilder(parts.get(0));
+    for (int i = 0; i < variables.size(); i++) {
+      query.append(format(variables.get(i), iris.get(i), attributes));
+      query.append(parts.get(i + 1));
+    }
+    return query.toString();
+  }
+
+  /**
+   * @return true if {@link #batch} can run the query for several flowfiles at once: a select query whose rows
+   *         do not depend on each other, so without sub queries, aggregates, LIMIT, OFFSET, GROUP BY or HAVING
+   */
+  boolean canBatch() {
+    return selectEnd >= 0 && whereStart >= 0 && !notPerRow;
+  }
+
+  /**
+   * @return the query with {@code indexVariable} added to the select clause and a VALUES block at the start of
+   *         the WHERE clause, with the values of the bound variables for every element of {@code attributes} and
+   *         its index in {@code indexVariable}
+   * @throws IllegalArgumentException if an attribute is missing or is not a valid IRI
+   */
+  String batch(List<Map<String, String>> attributes, String indexVariable) {
+    // on lines of their own, the '{' may be followed by a comment
+    final StringBuilder values = new StringBuilder("\n  VALUES (?").append(indexVariable);
+    for (final String variable : bound.keySet()) {
+      values.append(" ?").append(variable);
+    }
+    values.append(") {\n");
+    for (int i = 0; i < attributes.size(); i++) {
+      values.append("    (").append(i);
+      for (final Map.Entry<String, Boolean> variable : bound.entrySet()) {
+        values.append(' ').append(format(variable.getKey(), variable.getValue(), attributes.get(i)));
+      }
+      values.append(")\n");
+    }
+    values.append("  }\n");
+
+    final StringBuilder batch = new StringBuilder(query);
+    batch.insert(whereStart, values);
+    if (!selectAll) {
+      batch.insert(selectEnd, " ?" + indexVariable);
+    }
+    return batch.toString();
+  }
+
+  /**
+   * @return the query with a Virtuoso parameter marker in place of every variable, IRIs wrapped in iri()
+   */
+  String prepared() {
+    final StringBuilder query = new StringBuilder(parts.get(0));
+    for (int i = 0; i < variables.size(); i++) {
+      query.append(iris.get(i) ? "`iri(??)`" : "??");
+      query.append(parts.get(i + 1));
+    }
+    return query.toString();
+  }
+
+  /**
+   * @return the values for the markers of {@link #prepared()}, in order
+   * @throws IllegalArgumentException if an attribute is missing or is not a valid IRI
+   */
+  List<String> parameters(Map<String, String> attributes) {
+    final List<String> values = new ArrayList<>(variables.size());
+    for (int i = 0; i < variables.size(); i++) {
+      values.add(value(variables.get(i), iris.get(i), attributes));
+    }
+    return values;
+  }
+
+  private static String format(String variable, boolean iri, Map<String, String> attributes) {
+    final String value = value(variable, iri, attributes);
+    return iri ? FmtUtils.stringForURI(value) : FmtUtils.stringForNode(NodeFactory.createLiteral(value));
+  }
+
+  private static String value(String variable, boolean iri, Map<String, String> attributes) {
+    final String value = attributes.get(variable);
+    if (value == null) {
+      throw new IllegalArgumentException("No attribute '" + variable + "' to bind ?" + variable + " to");
+    }
+    if (iri && !isIri(value)) {
+      throw new IllegalArgumentException("Attribute '" + variable + "' is not a valid IRI: " + value);
+    }
+    return value;
+  }
+
+  /**
+   * @return true if the value can be written between '&lt;' and '&gt;' in a query
+   */
+  static boolean isIri(String value) {
+    for (int c = 0; c < value.length(); c++) {
+      if (value.charAt(c) <= ' ' || IRI_FORBIDDEN.indexOf(value.charAt(c)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // after 'SELECT' and an optional 'DISTINCT' or 'REDUCED'
+  private void findSelectEnd(int i) {
+    selectEnd = i;
+    int next = skipWhitespace(query, i);
+    if (next < query.length() && Character.isLetter(query.charAt(next))) {
+      final String modifier = query.substring(next, wordEnd(query, next));
+      if (modifier.equalsIgnoreCase("DISTINCT") || modifier.equalsIgnoreCase("REDUCED")) {
+        selectEnd = next + modifier.length();
+        next = skipWhitespace(query, selectEnd);
+      }
+    }
+    selectAll = next < query.length() && query.charAt(next) == '*';
+  }
+
+  static int wordEnd(String query, int i) {
+    while (i < query.length() && isNameChar(query.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int skipWhitespace(String query, int i) {
+    while (i < query.length() && Character.isWhitespace(query.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isNameChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  // returns the index after the string that starts at i, short ('x') or long ('''x''') form
+  static int skipString(String query, int i) {
+    final char quote = query.charAt(i);
+    final String triple = new String(new char[]{quote, quote, quote});
+    if (query.startsWith(triple, i)) {
+      final int end = query.indexOf(triple, i + 3);
+      return end < 0 ? query.length() : end + 3;
+    }
+    int j = i + 1;
+    while (j < query.length() && query.charAt(j) != quote) {
+      j += query.charAt(j) == '\\' ? 2 : 1;
+    }
+    return Math.min(j + 1, query.length());
+  }
+
+  // an IRI has no whitespace, so a '<' that is not closed before the next whitespace is a comparison
+  static int skipIri(String query, int i) {
+    int j = i + 1;
+    while (j < query.length() && query.charAt(j) > ' ' && query.charAt(j) != '<') {
+      if (query.charAt(j) == '>') {
+        return j + 1;
+      }
+      j++;
+    }
+    return i + 1;
+  }
+}
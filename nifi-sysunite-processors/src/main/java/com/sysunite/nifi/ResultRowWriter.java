@@ -0,0 +1,97 @@
+package com.sysunite.nifi;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Writes the rows of a query result as text: the values of the selected variables joined by the separator, or
+ * one JSON object per row with the variables as members. The columns of the variables are looked up once in
+ * the variables of the result instead of by name for every value, and values that start with the namespace of
+ * a prefix are shortened to 'prefix:name' (see {@link IriPrefixes}). A missing value is an empty column, or null in JSON.
+ */
+final class ResultRowWriter {
+
+  private final String[] names;
+  private final int[] columns;
+  private final String separator;
+  private final boolean json;
+  private final IriPrefixes prefixes;
+
+  ResultRowWriter(List<String> variables, List<String> selectVars, String separator, boolean json, IriPrefixes prefixes) throws SQLException {
+    this.names = selectVars.toArray(new String[selectVars.size()]);
+    this.columns = new int[names.length];
+    this.separator = separator;
+    this.json = json;
+    this.prefixes = prefixes;
+
+    for (int i = 0; i < names.length; i++) {
+      columns[i] = column(variables, names[i]);
+    }
+  }
+
+  /**
+   * @return the index of the column of the variable
+   * @throws SQLException if the result has no such column
+   */
+  static int column(List<String> variables, String name) throws SQLException {
+    final int index = variables.indexOf(name);
+    if (index >= 0) {
+      return index + 1;
+    }
+    throw new SQLException("Wrong select, the result has no column '" + name + "'");
+  }
+
+  /**
+   * Writes the current row of the result, followed by a newline.
+   */
+  void write(QuadStore.Result result, Writer writer) throws SQLException, IOException {
+    writeRow(result, writer);
+    writer.write('\n');
+  }
+
+  /**
+   * @return the current row of the result, without a newline
+   */
+  String format(QuadStore.Result result) throws SQLException {
+    final StringWriter row = new StringWriter();
+    try {
+      writeRow(result, row);
+    } catch (IOException e) {
+      // a StringWriter does not fail
+      throw new IllegalStateException(e);
+    }
+    return row.toString();
+  }
+
+  /**
+   * Writes the current row of the result, without a newline.
+   */
+  void writeRow(QuadStore.Result result, Writer writer) throws SQLException, IOException {
+    if (json) {
+      writer.write('{');
+    }
+    for (int i = 0; i < names.length; i++) {
+      if (i > 0) {
+        writer.write(json ? "," : separator);
+      }
+      final String value = prefixes.shorten(result.getString(columns[i]));
+      if (json) {
+        XmlToJson.writeString(names[i], writer);
+        writer.write(':');
+        if (value == null) {
+          writer.write("null");
+        } else {
+          XmlToJson.writeString(value, writer);
+        }
+      } else if (value != null) {
+        writer.write(value);
+      }
+    }
+    if (json) {
+      writer.write('}');
+    }
+  }
+}
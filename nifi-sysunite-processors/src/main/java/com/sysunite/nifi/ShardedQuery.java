@@ -0,0 +1,201 @@
+package com.sysunite.nifi;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Merges the rows of the shards of a select query that run at the same time. Every shard runs the query
+ * with a filter that keeps the rows whose shard variable hashes to that shard, so together the shards
+ * return every row exactly once. The filter goes into the pattern of the query where it can, so the store
+ * can drop the rows of the other shards as soon as the variable is bound. The shards add their rows to a
+ * bounded queue that is read by a single consumer, which writes them to flowfiles; a shard that is ahead
+ * waits for the consumer. When a shard fails, the queries of the others are cancelled.
+ */
+final class ShardedQuery {
+
+  // the variable the hash of the shard variable is bound to
+  private static final String HASH = "nifi_shard_hash";
+  private static final String HEX = "\"0123456789abcdef\"";
+
+  // marks the end of a shard in the queue
+  private static final String END = new String("end of shard");
+
+  private final int shards;
+  private final BlockingQueue<String> rows;
+  private final AtomicReference<SQLException> failure = new AtomicReference<>();
+  // the connections of the shards that are running, to cancel them
+  private final Set<QuadStore.Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<QuadStore.Connection, Boolean>());
+  private volatile boolean abandoned;
+  private volatile boolean cancelled;
+  private int ended;
+
+  ShardedQuery(int shards, int capacity) {
+    this.shards = shards;
+    this.rows = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * @return the query that selects the rows of shard {@code shard} of {@code shards} from the select query {@code body}
+   */
+  static String shard(String body, String variable, int shard, int shards) {
+    final String filter = filter(variable, shard, shards);
+    final int end = patternEnd(body);
+    if (end >= 0) {
+      return body.substring(0, end) + "\n" + filter + body.substring(end);
+    }
+    return "SELECT * WHERE {\n  {\n" + body + "\n  }\n" + filter + "}";
+  }
+
+  private static String filter(String variable, int shard, int shards) {
+    // the first four hex digits of the MD5 of the value, as a number
+    final StringBuilder hash = new StringBuilder();
+    for (int digit = 1; digit <= 4; digit++) {
+      if (digit > 1) {
+        hash.insert(0, "16 * (").append(") + ");
+      }
+      hash.append("STRLEN(STRBEFORE(").append(HEX).append(", SUBSTR(?").append(HASH).append(", ").append(digit).append(", 1)))");
+    }
+    // a blank node or an unbound variable has no hash and goes to the first shard
+    return "  BIND (MD5(STR(?" + variable + ")) AS ?" + HASH + ")\n"
+      + "  FILTER (COALESCE((" + hash + ") - " + shards + " * FLOOR((" + hash + ") / " + shards + "), 0) = " + shard + ")\n";
+  }
+
+  /**
+   * @return the position of the brace that closes the WHERE clause of the select query, or -1 if a filter in
+   *         there would change the result: when the select clause has expressions, which may be aggregates, or is
+   *         DISTINCT, or when something follows the WHERE clause, like GROUP BY, LIMIT or VALUES, that works on all rows
+   */
+  static int patternEnd(String query) {
+    int depth = 0;
+    int end = -1;
+    int i = 0;
+    while (i < query.length()) {
+      final char c = query.charAt(i);
+      if (c == '#') {
+        final int lineEnd = query.indexOf('\n', i);
+        i = lineEnd < 0 ? query.length() : lineEnd;
+      } else if (Character.isWhitespace(c)) {
+        i++;
+      } else if (end >= 0) {
+        return -1;
+      } else if (c == '"' || c == '\'') {
+        i = QueryTemplate.skipString(query, i);
+      } else if (c == '<') {
+        i = QueryTemplate.skipIri(query, i);
+      } else if (c == '(' && depth == 0) {
+        return -1;
+      } else if (Character.isLetter(c) && depth == 0) {
+        final int wordEnd = QueryTemplate.wordEnd(query, i);
+        if (query.substring(i, wordEnd).equalsIgnoreCase("DISTINCT")) {
+          return -1;
+        }
+        i = wordEnd;
+      } else if (c == '{') {
+        depth++;
+        i++;
+      } else if (c == '}') {
+        if (--depth == 0) {
+          end = i;
+        }
+        i++;
+      } else {
+        i++;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Registers the connection of a shard, to be cancelled when another shard fails.
+   * @return false if the query is cancelled already, the shard should not run then
+   */
+  boolean started(QuadStore.Connection connection) {
+    connections.add(connection);
+    return !cancelled;
+  }
+
+  void ended(QuadStore.Connection connection) {
+    connections.remove(connection);
+  }
+
+  /**
+   * @return true if the shards were cancelled, their failures are not the cause
+   */
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  private void cancel() {
+    cancelled = true;
+    for (final QuadStore.Connection connection : connections) {
+      try {
+        connection.cancel();
+      } catch (SQLException e) {
+        // the shard ends with its own failure or result
+      }
+    }
+  }
+
+  /**
+   * Adds a row of a shard, waiting while the queue is full.
+   * @return false if the consumer stopped reading, the shard can stop then
+   */
+  boolean add(String row) throws InterruptedException {
+    while (!rows.offer(row, 100, TimeUnit.MILLISECONDS)) {
+      if (abandoned) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Ends a shard, to be called once by every shard, also when it failed.
+   * @param failure why the shard failed, or null if it returned all its rows
+   */
+  void end(SQLException failure) throws InterruptedException {
+    if (failure != null && this.failure.compareAndSet(null, failure)) {
+      cancel();
+    }
+    add(END);
+  }
+
+  /**
+   * @return the next row of any shard, or null after the last row of the last shard
+   * @throws SQLException the failure of the first shard that failed
+   */
+  String next() throws SQLException {
+    while (true) {
+      final String row;
+      try {
+        row = rows.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for the shards of the query", e);
+      }
+      if (row != END) {
+        return row;
+      }
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+      if (++ended == shards) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Tells the shards that are still running that their rows are not read anymore, and cancels their queries.
+   */
+  void abandon() {
+    abandoned = true;
+    cancel();
+  }
+}
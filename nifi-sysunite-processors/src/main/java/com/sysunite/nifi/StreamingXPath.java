@@ -0,0 +1,253 @@
+package com.sysunite.nifi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A location path from the subset of XPath that can be evaluated while streaming through a document:
+ * absolute paths built from child ('/') and descendant ('//') steps on element names or '*', each with
+ * optional attribute and position predicates ('[@id]', "[@Name='x']", '[1]'), optionally ending in an
+ * attribute step ('/@id').
+ * Names are matched against the name as written in the document. Like XPath on the non namespace aware DOM
+ * of {@link XmlSplit}, where a prefix in the expression never matches, a path with a prefixed name anywhere
+ * ('//x:a', '//a[@x:id]', '//a/@x:id') selects nothing.
+ */
+final class StreamingXPath {
+
+  static final class Step {
+
+    final boolean descendant;
+    final String name;
+    final List<Predicate> predicates;
+    // the first position predicate, after which no more siblings can match; 0 if there is none
+    final int position;
+    // the path has a prefixed name, so no element matches this step
+    final boolean matchesNothing;
+
+    private Step(boolean descendant, String name, List<Predicate> predicates, boolean matchesNothing) {
+      this.descendant = descendant;
+      this.name = name;
+      this.predicates = Collections.unmodifiableList(predicates);
+      this.matchesNothing = matchesNothing;
+      int first = 0;
+      for (Predicate predicate : predicates) {
+        if (predicate.position > 0) {
+          first = predicate.position;
+          break;
+        }
+      }
+      this.position = first;
+    }
+
+    boolean nameMatches(String qName) {
+      return !matchesNothing && ("*".equals(name) || name.equals(qName));
+    }
+  }
+
+  /**
+   * '[@attribute]', '[@attribute=value]' or '[position]'
+   */
+  static final class Predicate {
+
+    final String attribute;
+    final String value;
+    // the position among the siblings that passed the predicates before this one, 0 for attribute predicates
+    final int position;
+
+    private Predicate(String attribute, String value, int position) {
+      this.attribute = attribute;
+      this.value = value;
+      this.position = position;
+    }
+
+    boolean test(String attributeValue) {
+      return attributeValue != null && (value == null || value.equals(attributeValue));
+    }
+  }
+
+  private final String expression;
+  private final List<Step> steps;
+  private final String attribute;
+
+  private StreamingXPath(String expression, List<Step> steps, String attribute) {
+    this.expression = expression;
+    this.steps = Collections.unmodifiableList(steps);
+    this.attribute = attribute;
+  }
+
+  List<Step> getSteps() {
+    return steps;
+  }
+
+  /**
+   * @return the attribute selected by the last step, or null when the path selects elements
+   */
+  String getAttribute() {
+    return attribute;
+  }
+
+  /**
+   * @throws IllegalArgumentException when the expression is outside the streamable subset
+   */
+  static StreamingXPath compile(String expression) {
+    return new Parser(expression).parse();
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  private static final class Parser {
+
+    private final String expression;
+    private final String xPath;
+    private int position;
+
+    private Parser(String expression) {
+      this.expression = expression;
+      this.xPath = expression.trim();
+    }
+
+    private StreamingXPath parse() {
+      if (!xPath.startsWith("/")) {
+        throw unsupported("it is not an absolute location path");
+      }
+
+      final List<Step> steps = new ArrayList<>();
+      String attribute = null;
+      boolean prefixed = false;
+
+      while (position < xPath.length()) {
+        if (attribute != null) {
+          throw unsupported("an attribute can only be selected by the last step");
+        }
+
+        boolean descendant = false;
+        if (xPath.startsWith("//", position)) {
+          descendant = true;
+          position += 2;
+        } else if (xPath.charAt(position) == '/') {
+          position += 1;
+        } else {
+          throw unsupported("unexpected '" + xPath.charAt(position) + "' at position " + position);
+        }
+
+        if (peek() == '@') {
+          if (descendant || steps.isEmpty()) {
+            throw unsupported("only attributes of a selected element are supported");
+          }
+          position++;
+          attribute = name();
+          prefixed |= attribute.indexOf(':') >= 0;
+          continue;
+        }
+
+        final String name = peek() == '*' ? String.valueOf(xPath.charAt(position++)) : name();
+        final List<Predicate> predicates = new ArrayList<>();
+        while (peek() == '[') {
+          final Predicate predicate = predicate();
+          prefixed |= predicate.attribute != null && predicate.attribute.indexOf(':') >= 0;
+          predicates.add(predicate);
+        }
+        prefixed |= name.indexOf(':') >= 0;
+        steps.add(new Step(descendant, name, predicates, false));
+      }
+
+      if (steps.isEmpty()) {
+        throw unsupported("it does not select anything");
+      }
+      if (prefixed) {
+        for (int i = 0; i < steps.size(); i++) {
+          final Step step = steps.get(i);
+          steps.set(i, new Step(step.descendant, step.name, step.predicates, true));
+        }
+      }
+      return new StreamingXPath(xPath, steps, attribute);
+    }
+
+    private Predicate predicate() {
+      position++; // '['
+      skipWhitespace();
+      if (Character.isDigit(peek())) {
+        final int start = position;
+        while (Character.isDigit(peek())) {
+          position++;
+        }
+        final int index;
+        try {
+          index = Integer.parseInt(xPath.substring(start, position));
+        } catch (NumberFormatException e) {
+          throw unsupported("position " + xPath.substring(start, position) + " is too large");
+        }
+        skipWhitespace();
+        if (peek() != ']' || index == 0) {
+          throw unsupported("only attribute predicates like [@id] or [@id='x'] and positions like [1] are supported");
+        }
+        position++;
+        return new Predicate(null, null, index);
+      }
+      if (peek() != '@') {
+        throw unsupported("only attribute predicates like [@id] or [@id='x'] and positions like [1] are supported");
+      }
+      position++;
+      final String attribute = name();
+      skipWhitespace();
+
+      String value = null;
+      if (peek() == '=') {
+        position++;
+        skipWhitespace();
+        final char quote = peek();
+        if (quote != '\'' && quote != '"') {
+          throw unsupported("only literal values are supported in predicates");
+        }
+        final int end = xPath.indexOf(quote, position + 1);
+        if (end < 0) {
+          throw unsupported("unterminated literal");
+        }
+        value = xPath.substring(position + 1, end);
+        position = end + 1;
+        skipWhitespace();
+      }
+
+      if (peek() != ']') {
+        throw unsupported("only attribute predicates like [@id] or [@id='x'] and positions like [1] are supported");
+      }
+      position++;
+      return new Predicate(attribute, value, 0);
+    }
+
+    private String name() {
+      final int start = position;
+      while (position < xPath.length()) {
+        final char c = xPath.charAt(position);
+        final boolean first = position == start;
+        if (Character.isLetter(c) || c == '_' || (!first && (Character.isDigit(c) || c == '.' || c == '-' || c == ':'))) {
+          position++;
+        } else {
+          break;
+        }
+      }
+      if (position == start) {
+        throw unsupported("expected a name at position " + start);
+      }
+      return xPath.substring(start, position);
+    }
+
+    private char peek() {
+      return position < xPath.length() ? xPath.charAt(position) : 0;
+    }
+
+    private void skipWhitespace() {
+      while (position < xPath.length() && Character.isWhitespace(xPath.charAt(position))) {
+        position++;
+      }
+    }
+
+    private IllegalArgumentException unsupported(String reason) {
+      return new IllegalArgumentException("'" + expression + "' can not be evaluated while streaming: " + reason);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.processor.Relationship;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Evaluates the {@link StreamingXPath}s of all relationships together in a single pass over a document.
+ *
+ * Every step of every path is a state of one combined automaton; a state is active while the steps
+ * before it have matched the ancestors of the current element. The sets of active states are
+ * determinized lazily: each distinct set becomes a {@link State} that caches its transition per element
+ * name, so after warming up, a start tag costs one map lookup regardless of the number of relationships.
+ * Transitions that depend on attribute or position predicates are computed for every element and not cached.
+ *
+ * A matcher is immutable apart from these caches, which are thread safe, so one instance is shared by
+ * all task threads. The position in a single document is tracked by a {@link Cursor}.
+ */
+final class StreamingXPathMatcher {
+
+  interface Attributes {
+    /**
+     * @return the value of the attribute with the given qualified name, or null if it is not present
+     */
+    String get(String qName);
+  }
+
+  /**
+   * A relationship whose path selects the current element, or its {@link #attribute} when that is not null.
+   */
+  static final class Match {
+
+    final Relationship relationship;
+    final String attribute;
+    private final int path;
+
+    private Match(Relationship relationship, String attribute, int path) {
+      this.relationship = relationship;
+      this.attribute = attribute;
+      this.path = path;
+    }
+  }
+
+  static final class Transition {
+
+    final State next;
+    final Match[] matches;
+
+    private Transition(State next, Match[] matches) {
+      this.next = next;
+      this.matches = matches;
+    }
+  }
+
+  final class State {
+
+    private final int[] steps;
+    private final ConcurrentMap<String, Transition> transitions = new ConcurrentHashMap<>();
+
+    private State(int[] steps) {
+      this.steps = steps;
+    }
+
+    /**
+     * @return true if nothing below the element in this state can match anymore
+     */
+    boolean isDead() {
+      return steps.length == 0;
+    }
+  }
+
+  /**
+   * The matcher states from the document down to the current element of one document, and what can
+   * still be selected in the rest of it.
+   */
+  final class Cursor {
+
+    private final List<State> states = new ArrayList<>();
+    // per open element, how many of its children passed the predicates of a step up to its first position predicate
+    private final List<int[]> counts = new ArrayList<>();
+    private final boolean[] satisfied = new boolean[paths];
+    private boolean started;
+
+    private Cursor() {
+      push(initial);
+    }
+
+    /**
+     * Moves into a child of the current element.
+     * @param qName the name of the element, which may be null if the current state {@link State#isDead() is dead}
+     * @return the paths that select the element or one of its attributes
+     */
+    Match[] startElement(String qName, Attributes attributes) {
+      final Transition transition = next(current(), qName, attributes, counts.get(counts.size() - 1));
+      push(transition.next);
+      started = true;
+      return transition.matches;
+    }
+
+    void endElement() {
+      states.remove(states.size() - 1);
+      counts.remove(counts.size() - 1);
+    }
+
+    State current() {
+      return states.get(states.size() - 1);
+    }
+
+    /**
+     * @return the number of open elements plus one
+     */
+    int depth() {
+      return states.size();
+    }
+
+    /**
+     * Marks the path of the match as done, because only its first value is used.
+     */
+    void satisfy(Match match) {
+      satisfied[match.path] = true;
+    }
+
+    /**
+     * @return true if none of the paths that are not satisfied can select anything in the rest of the document
+     */
+    boolean isFinished() {
+      if (!started) {
+        return false;
+      }
+      // the document element is the only element at the document level, so only its descendants are left
+      for (int level = 1; level < states.size(); level++) {
+        final int[] count = counts.get(level);
+        for (final int i : states.get(level).steps) {
+          if (satisfied[pathOf[i]] || steps[i].matchesNothing) {
+            continue;
+          }
+          // a descendant step also matches deeper down, so it is not done after its position
+          if (steps[i].position == 0 || steps[i].descendant || count[i] < steps[i].position) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    private void push(State state) {
+      states.add(state);
+      counts.add(hasPositions && !state.isDead() ? new int[steps.length] : null);
+    }
+  }
+
+  // keeps a document with many distinct element names from growing the caches without bounds
+  private static final int MAX_CACHED_TRANSITIONS = 1024;
+  private static final int MAX_STATES = 4096;
+
+  private static final Match[] NO_MATCHES = new Match[0];
+
+  // the flattened steps of all paths; the step following a non final step i is i + 1
+  private final StreamingXPath.Step[] steps;
+  private final Match[] finals;
+  private final int[] pathOf;
+  private final int paths;
+
+  private final boolean needsAttributes;
+  private final boolean hasPositions;
+  private final ConcurrentMap<List<Integer>, State> states = new ConcurrentHashMap<>();
+  private final State initial;
+  private final Transition dead;
+
+  StreamingXPathMatcher(Map<Relationship, StreamingXPath> paths) {
+    final List<StreamingXPath.Step> allSteps = new ArrayList<>();
+    final List<Match> allFinals = new ArrayList<>();
+    final List<Integer> allPaths = new ArrayList<>();
+    final List<Integer> firstSteps = new ArrayList<>();
+    boolean attributes = false;
+    boolean positions = false;
+
+    for (final Map.Entry<Relationship, StreamingXPath> entry : paths.entrySet()) {
+      final StreamingXPath path = entry.getValue();
+      final int index = firstSteps.size();
+      final Match match = new Match(entry.getKey(), path.getAttribute(), index);
+      attributes |= path.getAttribute() != null;
+
+      firstSteps.add(allSteps.size());
+      for (int i = 0; i < path.getSteps().size(); i++) {
+        final StreamingXPath.Step step = path.getSteps().get(i);
+        for (final StreamingXPath.Predicate predicate : step.predicates) {
+          attributes |= predicate.position == 0;
+          positions |= predicate.position > 0;
+        }
+        allSteps.add(step);
+        allFinals.add(i == path.getSteps().size() - 1 ? match : null);
+        allPaths.add(index);
+      }
+    }
+
+    this.steps = allSteps.toArray(new StreamingXPath.Step[allSteps.size()]);
+    this.finals = allFinals.toArray(new Match[allFinals.size()]);
+    this.pathOf = new int[allPaths.size()];
+    for (int i = 0; i < pathOf.length; i++) {
+      pathOf[i] = allPaths.get(i);
+    }
+    this.paths = firstSteps.size();
+    this.needsAttributes = attributes;
+    this.hasPositions = positions;
+    this.initial = state(firstSteps);
+    this.dead = new Transition(state(Collections.<Integer>emptyList()), NO_MATCHES);
+  }
+
+  /**
+   * @return a cursor at the start of a new document
+   */
+  Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * @return true if some path has an attribute predicate or selects an attribute
+   */
+  boolean needsAttributes() {
+    return needsAttributes;
+  }
+
+  /**
+   * Computes the state of a child element with the given name and attributes of an element in state
+   * {@code state}, and which paths select that child (or one of its attributes).
+   * @param counts the counts of position predicates of the earlier children, updated for this one
+   */
+  private Transition next(State state, String qName, Attributes attributes, int[] counts) {
+    if (state.isDead()) {
+      return dead;
+    }
+
+    final Transition cached = state.transitions.get(qName);
+    if (cached != null) {
+      return cached;
+    }
+
+    boolean cacheable = true;
+    final TreeSet<Integer> next = new TreeSet<>();
+    final Set<Match> matches = new LinkedHashSet<>();
+
+    for (final int i : state.steps) {
+      final StreamingXPath.Step step = steps[i];
+      if (step.matchesNothing) {
+        continue;
+      }
+      // a descendant step can still match anywhere further down
+      if (step.descendant) {
+        next.add(i);
+      }
+      if (!step.nameMatches(qName)) {
+        continue;
+      }
+      if (!step.predicates.isEmpty()) {
+        cacheable = false;
+        if (!predicatesHold(i, attributes, counts)) {
+          continue;
+        }
+      }
+      if (finals[i] != null) {
+        matches.add(finals[i]);
+      } else {
+        next.add(i + 1);
+      }
+    }
+
+    final Transition transition = new Transition(state(next), matches.isEmpty() ? NO_MATCHES : matches.toArray(new Match[matches.size()]));
+    if (cacheable && state.transitions.size() < MAX_CACHED_TRANSITIONS) {
+      state.transitions.putIfAbsent(qName, transition);
+    }
+    return transition;
+  }
+
+  // predicates filter in order, a position counts the siblings that passed the predicates before it
+  private boolean predicatesHold(int i, Attributes attributes, int[] counts) {
+    int passed = 0;
+    for (final StreamingXPath.Predicate predicate : steps[i].predicates) {
+      if (predicate.position == 0) {
+        if (!predicate.test(attributes.get(predicate.attribute))) {
+          return false;
+        }
+      } else if (predicate.position == steps[i].position && passed == 0) {
+        passed = ++counts[i];
+        if (passed != predicate.position) {
+          return false;
+        }
+      } else if (predicate.position != 1) {
+        // a later position predicate only sees the single sibling that is left
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private State state(Collection<Integer> active) {
+    final List<Integer> key = new ArrayList<>(active);
+    final State existing = states.get(key);
+    if (existing != null) {
+      return existing;
+    }
+
+    final int[] array = new int[key.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = key.get(i);
+    }
+    final State state = new State(array);
+    if (states.size() >= MAX_STATES) {
+      return state;
+    }
+    final State raced = states.putIfAbsent(key, state);
+    return raced == null ? state : raced;
+  }
+}
@@ -0,0 +1,378 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.processor.Relationship;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Splits a document with StAX without ever building a DOM. Every element selected by the
+ * {@link StreamingXPathMatcher} is copied into its own buffer while it is being read, and handed to the
+ * {@link FragmentHandler} as soon as its end tag is seen. Memory use is therefore bounded by the
+ * largest matched element instead of by the document. Fragments are handed on in document order (the order
+ * of their start tags) like in DOM mode, so a match nested in another match waits until the outer one has
+ * ended. Fragments are written without an XML declaration, so they can be collected into a batch as they
+ * are, or as JSON (see {@link XmlToJson}). Reading stops as soon as nothing more can be selected.
+ */
+final class StreamingXmlSplitter {
+
+  interface FragmentHandler {
+
+    void onFragment(Relationship relationship, ByteArrayOutputStream fragment) throws IOException;
+
+    /**
+     * Called for the first element that has the attribute selected by a path.
+     */
+    void onAttribute(Relationship relationship, String value) throws IOException;
+  }
+
+  // StAX factories are not guaranteed to be thread safe, so every task thread gets its own
+  private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  });
+
+  private static final ThreadLocal<XMLOutputFactory> OUTPUT_FACTORY = ThreadLocal.withInitial(XMLOutputFactory::newInstance);
+
+  private final StreamingXPathMatcher matcher;
+  private final boolean json;
+
+  StreamingXmlSplitter(StreamingXPathMatcher matcher, OutputFormat format) {
+    this.matcher = matcher;
+    this.json = format.isJson();
+  }
+
+  void split(InputStream in, FragmentHandler handler) throws IOException, XMLStreamException {
+
+    final XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(in);
+
+    final StreamingXPathMatcher.Attributes attributes = qName -> attribute(reader, qName);
+
+    // matcher states and namespace declarations from the document element down to the current element
+    final StreamingXPathMatcher.Cursor cursor = matcher.cursor();
+    final List<Map<String, String>> namespaces = new ArrayList<>();
+
+    // open fragments, innermost last
+    final Deque<Capture> captures = new ArrayDeque<>();
+    // fragments in the order they start, as DOM mode selects them; a nested fragment waits here for the ones around it
+    final Deque<Capture> pending = new ArrayDeque<>();
+
+    try {
+      boolean finished = false;
+      while (!finished && reader.hasNext()) {
+        switch (reader.next()) {
+
+          case XMLStreamConstants.START_ELEMENT:
+            // below a dead state the name is not needed, so don't build it
+            final StreamingXPathMatcher.Match[] matches = cursor.current().isDead()
+                ? cursor.startElement(null, attributes)
+                : cursor.startElement(qName(reader), attributes);
+            namespaces.add(declaredNamespaces(reader));
+
+            for (Capture capture : captures) {
+              capture.startElement(reader, namespaces.get(namespaces.size() - 1));
+            }
+
+            for (StreamingXPathMatcher.Match match : matches) {
+              if (match.attribute == null) {
+                Capture capture = json ? new JsonCapture(match.relationship, cursor.depth()) : new XmlCapture(match.relationship, cursor.depth());
+                capture.startElement(reader, inScopeNamespaces(namespaces));
+                captures.addLast(capture);
+                pending.addLast(capture);
+              } else {
+                String value = attribute(reader, match.attribute);
+                if (value != null) {
+                  handler.onAttribute(match.relationship, value);
+                  cursor.satisfy(match);
+                }
+              }
+            }
+            // an open capture still needs the rest of its element
+            finished = captures.isEmpty() && cursor.isFinished();
+            break;
+
+          case XMLStreamConstants.END_ELEMENT:
+            for (Capture capture : captures) {
+              capture.endElement();
+            }
+            while (!captures.isEmpty() && captures.peekLast().depth == cursor.depth()) {
+              Capture capture = captures.removeLast();
+              capture.fragment = capture.finish();
+            }
+            while (!pending.isEmpty() && pending.peekFirst().fragment != null) {
+              Capture capture = pending.removeFirst();
+              handler.onFragment(capture.relationship, capture.fragment);
+            }
+            cursor.endElement();
+            namespaces.remove(namespaces.size() - 1);
+            finished = captures.isEmpty() && cursor.isFinished();
+            break;
+
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.SPACE:
+            for (Capture capture : captures) {
+              capture.characters(reader);
+            }
+            break;
+
+          case XMLStreamConstants.CDATA:
+            for (Capture capture : captures) {
+              capture.cData(reader.getText());
+            }
+            break;
+
+          case XMLStreamConstants.COMMENT:
+            for (Capture capture : captures) {
+              capture.comment(reader.getText());
+            }
+            break;
+
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            for (Capture capture : captures) {
+              capture.processingInstruction(reader.getPITarget(), reader.getPIData());
+            }
+            break;
+
+          case XMLStreamConstants.ENTITY_REFERENCE:
+            for (Capture capture : captures) {
+              capture.entityRef(reader.getLocalName());
+            }
+            break;
+
+          default:
+            break;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static String qName(XMLStreamReader reader) {
+    String prefix = reader.getPrefix();
+    if (prefix == null || prefix.isEmpty()) {
+      return reader.getLocalName();
+    }
+    return prefix + ":" + reader.getLocalName();
+  }
+
+  private static String attribute(XMLStreamReader reader, String qName) {
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String prefix = reader.getAttributePrefix(i);
+      String localName = reader.getAttributeLocalName(i);
+      boolean matches = prefix == null || prefix.isEmpty()
+          ? qName.equals(localName)
+          : qName.length() == prefix.length() + 1 + localName.length() && qName.startsWith(prefix) && qName.endsWith(localName)
+              && qName.charAt(prefix.length()) == ':';
+      if (matches) {
+        return reader.getAttributeValue(i);
+      }
+    }
+    return null;
+  }
+
+  private static Map<String, String> declaredNamespaces(XMLStreamReader reader) {
+    if (reader.getNamespaceCount() == 0) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> declared = new LinkedHashMap<>();
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String prefix = reader.getNamespacePrefix(i);
+      declared.put(prefix == null ? "" : prefix, reader.getNamespaceURI(i));
+    }
+    return declared;
+  }
+
+  // A fragment is taken out of its context, so its root has to redeclare everything that is in scope
+  private static Map<String, String> inScopeNamespaces(List<Map<String, String>> namespaces) {
+    Map<String, String> inScope = new LinkedHashMap<>();
+    for (Map<String, String> declared : namespaces) {
+      inScope.putAll(declared);
+    }
+    return inScope;
+  }
+
+  private abstract static class Capture {
+
+    final Relationship relationship;
+    final int depth;
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    // set when the element has ended
+    ByteArrayOutputStream fragment;
+
+    private Capture(Relationship relationship, int depth) {
+      this.relationship = relationship;
+      this.depth = depth;
+    }
+
+    abstract void startElement(XMLStreamReader reader, Map<String, String> namespaces) throws XMLStreamException;
+
+    abstract void endElement() throws XMLStreamException;
+
+    abstract void characters(XMLStreamReader reader) throws XMLStreamException;
+
+    abstract void cData(String text) throws XMLStreamException;
+
+    abstract void comment(String text) throws XMLStreamException;
+
+    abstract void processingInstruction(String target, String data) throws XMLStreamException;
+
+    abstract void entityRef(String name) throws XMLStreamException;
+
+    abstract ByteArrayOutputStream finish() throws IOException, XMLStreamException;
+  }
+
+  private static final class XmlCapture extends Capture {
+
+    private final XMLStreamWriter writer;
+
+    private XmlCapture(Relationship relationship, int depth) throws XMLStreamException {
+      super(relationship, depth);
+      this.writer = OUTPUT_FACTORY.get().createXMLStreamWriter(buffer, "UTF-8");
+    }
+
+    @Override
+    void startElement(XMLStreamReader reader, Map<String, String> namespaces) throws XMLStreamException {
+      String prefix = reader.getPrefix();
+      String uri = reader.getNamespaceURI();
+      if (uri == null || uri.isEmpty()) {
+        writer.writeStartElement(reader.getLocalName());
+      } else {
+        writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), uri);
+      }
+
+      for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+        if (namespace.getKey().isEmpty()) {
+          writer.writeDefaultNamespace(namespace.getValue());
+        } else {
+          writer.writeNamespace(namespace.getKey(), namespace.getValue());
+        }
+      }
+
+      for (int i = 0; i < reader.getAttributeCount(); i++) {
+        String attributeUri = reader.getAttributeNamespace(i);
+        if (attributeUri == null || attributeUri.isEmpty()) {
+          writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        } else {
+          writer.writeAttribute(reader.getAttributePrefix(i), attributeUri, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+      }
+    }
+
+    @Override
+    void endElement() throws XMLStreamException {
+      writer.writeEndElement();
+    }
+
+    @Override
+    void characters(XMLStreamReader reader) throws XMLStreamException {
+      writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+    }
+
+    @Override
+    void cData(String text) throws XMLStreamException {
+      writer.writeCData(text);
+    }
+
+    @Override
+    void comment(String text) throws XMLStreamException {
+      writer.writeComment(text);
+    }
+
+    @Override
+    void processingInstruction(String target, String data) throws XMLStreamException {
+      writer.writeProcessingInstruction(target, data);
+    }
+
+    @Override
+    void entityRef(String name) throws XMLStreamException {
+      writer.writeEntityRef(name);
+    }
+
+    @Override
+    ByteArrayOutputStream finish() throws XMLStreamException {
+      writer.flush();
+      writer.close();
+      return buffer;
+    }
+  }
+
+  /**
+   * Collects the element and its descendants with qualified names, like the non namespace aware DOM does,
+   * and writes them as JSON when the element ends.
+   */
+  private static final class JsonCapture extends Capture {
+
+    private final Deque<XmlToJson.Element> open = new ArrayDeque<>();
+    private XmlToJson.Element root;
+
+    private JsonCapture(Relationship relationship, int depth) {
+      super(relationship, depth);
+    }
+
+    @Override
+    void startElement(XMLStreamReader reader, Map<String, String> namespaces) {
+      final XmlToJson.Element element = new XmlToJson.Element(qName(reader));
+      // only the declarations of the element itself, as they are attributes in the DOM
+      for (int i = 0; i < reader.getNamespaceCount(); i++) {
+        String prefix = reader.getNamespacePrefix(i);
+        element.attributes.put(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, reader.getNamespaceURI(i));
+      }
+      for (int i = 0; i < reader.getAttributeCount(); i++) {
+        String prefix = reader.getAttributePrefix(i);
+        String name = reader.getAttributeLocalName(i);
+        element.attributes.put(prefix == null || prefix.isEmpty() ? name : prefix + ":" + name, reader.getAttributeValue(i));
+      }
+
+      if (root == null) {
+        root = element;
+      } else {
+        open.peekLast().children.add(element);
+      }
+      open.addLast(element);
+    }
+
+    @Override
+    void endElement() {
+      open.removeLast();
+    }
+
+    @Override
+    void characters(XMLStreamReader reader) {
+      open.peekLast().text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+    }
+
+    @Override
+    void cData(String text) {
+      open.peekLast().text.append(text);
+    }
+
+    @Override
+    void comment(String text) {
+    }
+
+    @Override
+    void processingInstruction(String target, String data) {
+    }
+
+    @Override
+    void entityRef(String name) {
+    }
+
+    @Override
+    ByteArrayOutputStream finish() throws IOException {
+      XmlToJson.write(root, buffer);
+      return buffer;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.Node;
+import org.apache.jena.atlas.io.StringWriterI;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+import org.apache.jena.riot.out.NodeFormatterTTL;
+import org.apache.jena.riot.system.PrefixMap;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Writes the triples of a CONSTRUCT or DESCRIBE result as lines of N-Triples, N-Quads or Turtle. The store
+ * returns such a result as rows of subject, predicate and object (see {@link QuadStore.Connection#construct}),
+ * so the triples are written one at a time as they are read, with the node formatters of Jena's streaming
+ * writers, instead of being collected in a model first.
+ *
+ * A Turtle line is a complete triple with the IRIs shortened by the prefixes of {@link #turtleHeader}, so
+ * any number of lines after the header is a Turtle document.
+ */
+final class TripleRowWriter {
+
+  private final NodeFormatter formatter;
+  private final Node graph;
+
+  private TripleRowWriter(NodeFormatter formatter, Node graph) {
+    this.formatter = formatter;
+    this.graph = graph;
+  }
+
+  static TripleRowWriter ntriples() {
+    return new TripleRowWriter(new NodeFormatterNT(), null);
+  }
+
+  /**
+   * @param graph the graph of all the quads
+   */
+  static TripleRowWriter nquads(Node graph) {
+    return new TripleRowWriter(new NodeFormatterNT(), graph);
+  }
+
+  static TripleRowWriter turtle(PrefixMap prefixes) {
+    return new TripleRowWriter(new NodeFormatterTTL(null, prefixes), null);
+  }
+
+  /**
+   * @return the prefix declarations of a Turtle document
+   */
+  static String turtleHeader(PrefixMap prefixes) {
+    final StringBuilder header = new StringBuilder();
+    for (final Map.Entry<String, String> prefix : prefixes.getMappingCopyStr().entrySet()) {
+      header.append("@prefix ").append(prefix.getKey()).append(": <").append(prefix.getValue()).append("> .\n");
+    }
+    return header.toString();
+  }
+
+  /**
+   * @return the triple in the current row of the result, without a newline
+   */
+  String format(QuadStore.Result result) throws SQLException {
+    final StringWriterI line = new StringWriterI();
+    for (int column = 1; column <= 3; column++) {
+      formatter.format(line, result.getNode(column));
+      line.write(' ');
+    }
+    if (graph != null) {
+      formatter.format(line, graph);
+      line.write(' ');
+    }
+    line.write('.');
+    return line.toString();
+  }
+}
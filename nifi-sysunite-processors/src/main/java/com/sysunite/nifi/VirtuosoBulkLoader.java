@@ -0,0 +1,222 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.NodeFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RiotException;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ProcessorLog;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import virtuoso.jena.driver.TransactionFailedException;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"sparql, virtuoso, rdf, load"})
+@CapabilityDescription("Loads the RDF in flowfiles into Virtuoso, as batches of SPARQL INSERT DATA statements in transactions of a configurable size.")
+@SeeAlso({VirtuosoClient.class, VirtuosoConnectionPool.class})
+@WritesAttributes({
+  @WritesAttribute(attribute=VirtuosoBulkLoader.TRIPLES_LOADED, description="The number of triples that were committed, on a failed flowfile the ones of the transactions before the failure."),
+  @WritesAttribute(attribute=VirtuosoBulkLoader.TRIPLES_PER_SECOND, description="The number of triples loaded per second.")})
+public class VirtuosoBulkLoader extends AbstractProcessor {
+
+  public static final Relationship SUCCESS = new Relationship.Builder()
+    .name("success")
+    .description("Flowfiles whose triples are all loaded.")
+    .build();
+
+  public static final Relationship FAILURE = new Relationship.Builder()
+    .name("failure")
+    .description("Flowfiles that are not valid RDF or that could not be loaded. The transactions that were committed before the failure stay loaded.")
+    .build();
+
+  public static final PropertyDescriptor CONNECTION_SERVICE = new PropertyDescriptor
+    .Builder().name("connection service")
+    .description("The Virtuoso connection pool, or Jena quad store, to load into.")
+    .required(true)
+    .identifiesControllerService(VirtuosoConnectionService.class)
+    .build();
+
+  public static final PropertyDescriptor GRAPH = new PropertyDescriptor
+    .Builder().name("graph")
+    .description("The IRI of the graph the triples are loaded into, and of the quads in the default graph. Relative IRIs in the RDF are resolved against it.")
+    .required(true)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .expressionLanguageSupported(true)
+    .build();
+
+  public static final AllowableValue FORMAT_NTRIPLES = new AllowableValue("N-Triples", "N-Triples", "One triple per line.");
+
+  public static final AllowableValue FORMAT_TURTLE = new AllowableValue("Turtle", "Turtle", "Turtle, with prefixes and abbreviations.");
+
+  public static final AllowableValue FORMAT_NQUADS = new AllowableValue("N-Quads", "N-Quads", "One quad per line, each loaded into its own graph.");
+
+  public static final PropertyDescriptor FORMAT = new PropertyDescriptor
+    .Builder().name("format")
+    .description("The RDF syntax of the flowfiles.")
+    .required(true)
+    .allowableValues(FORMAT_NTRIPLES, FORMAT_TURTLE, FORMAT_NQUADS)
+    .defaultValue(FORMAT_NTRIPLES.getValue())
+    .build();
+
+  public static final PropertyDescriptor TRIPLES_PER_STATEMENT = new PropertyDescriptor
+    .Builder().name("triples per statement")
+    .description("The maximum number of triples in one INSERT DATA statement.")
+    .required(true)
+    .defaultValue("1000")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor STATEMENTS_PER_BATCH = new PropertyDescriptor
+    .Builder().name("statements per batch")
+    .description("The number of statements that are sent to Virtuoso together in one JDBC batch.")
+    .required(true)
+    .defaultValue("10")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor TRANSACTION_SIZE = new PropertyDescriptor
+    .Builder().name("transaction size")
+    .description("The number of triples after which the load is committed. A larger transaction is faster, but holds more locks "
+      + "and is more work to run again after a deadlock.")
+    .required(true)
+    .defaultValue("100000")
+    .addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor DEADLOCK_RETRIES = new PropertyDescriptor
+    .Builder().name("deadlock retries")
+    .description("How many times a transaction that deadlocked with another one is rolled back and run again before the flowfile fails.")
+    .required(true)
+    .defaultValue("3")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final String TRIPLES_LOADED = "virtuoso.triples.loaded";
+  public static final String TRIPLES_PER_SECOND = "virtuoso.triples.per.second";
+
+  private List<PropertyDescriptor> descriptors;
+
+  private Set<Relationship> relationships;
+
+  private ProcessorLog logger;
+
+  @Override
+  protected void init(final ProcessorInitializationContext context) {
+
+    logger = context.getLogger();
+
+    final List<PropertyDescriptor> descriptors = new ArrayList<>();
+    descriptors.add(CONNECTION_SERVICE);
+    descriptors.add(GRAPH);
+    descriptors.add(FORMAT);
+    descriptors.add(TRIPLES_PER_STATEMENT);
+    descriptors.add(STATEMENTS_PER_BATCH);
+    descriptors.add(TRANSACTION_SIZE);
+    descriptors.add(DEADLOCK_RETRIES);
+    this.descriptors = Collections.unmodifiableList(descriptors);
+
+    final Set<Relationship> relationships = new HashSet<>();
+    relationships.add(SUCCESS);
+    relationships.add(FAILURE);
+    this.relationships = Collections.unmodifiableSet(relationships);
+  }
+
+  @Override
+  public Set<Relationship> getRelationships() {
+    return relationships;
+  }
+
+  @Override
+  public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return descriptors;
+  }
+
+  @Override
+  public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+
+    FlowFile flowFile = session.get();
+    if (flowFile == null) {
+      return;
+    }
+
+    final String graph = context.getProperty(GRAPH).evaluateAttributeExpressions(flowFile).getValue();
+    final Lang lang = lang(context.getProperty(FORMAT).getValue());
+    final int statementsPerBatch = context.getProperty(STATEMENTS_PER_BATCH).asInteger();
+    final int retries = context.getProperty(DEADLOCK_RETRIES).asInteger();
+
+    final VirtuosoConnectionService service = context.getProperty(CONNECTION_SERVICE).asControllerService(VirtuosoConnectionService.class);
+    final QuadStore.Connection connection;
+    try {
+      connection = service.getStore().borrow(service.getMaxWait(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    } catch (SQLException e) {
+      // no connection now, the flowfile is tried again later
+      logger.error("No Virtuoso connection for {}: {}", new Object[]{flowFile, e.getMessage()});
+      session.transfer(session.penalize(flowFile));
+      context.yield();
+      return;
+    }
+    // the server the pool picked for this flowfile
+    final String address = connection.getAddress();
+
+    final long start = System.nanoTime();
+    final long[] loaded = new long[1];
+    final InsertDataWriter writer = new InsertDataWriter(NodeFactory.createURI(graph),
+      context.getProperty(TRIPLES_PER_STATEMENT).asInteger(),
+      context.getProperty(TRANSACTION_SIZE).asLong(),
+      (statements, triples) -> {
+        connection.update(statements, statementsPerBatch, retries);
+        loaded[0] += triples;
+      });
+
+    boolean failed = false;
+    try {
+      session.read(flowFile, in -> RDFDataMgr.parse(writer, in, graph, lang));
+    } catch (ProcessException | RiotException | TransactionFailedException e) {
+      logger.error("Failed to load {} into {} after {} triples: {}", new Object[]{flowFile, graph, loaded[0], e.getMessage()}, e);
+      failed = true;
+    } finally {
+      // a failed transaction may have left the connection in any state
+      if (failed) {
+        connection.invalidate();
+      } else {
+        connection.release();
+      }
+    }
+
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    session.adjustCounter("Triples loaded", loaded[0], false);
+
+    final Map<String, String> attributes = new HashMap<>();
+    attributes.put(TRIPLES_LOADED, String.valueOf(loaded[0]));
+    attributes.put(TRIPLES_PER_SECOND, String.valueOf(loaded[0] * 1000 / Math.max(millis, 1)));
+    flowFile = session.putAllAttributes(flowFile, attributes);
+
+    if (failed) {
+      session.transfer(session.penalize(flowFile), FAILURE);
+    } else {
+      session.getProvenanceReporter().send(flowFile, address, millis);
+      session.transfer(flowFile, SUCCESS);
+    }
+  }
+
+  private static Lang lang(String format) {
+    if (FORMAT_TURTLE.getValue().equals(format)) {
+      return Lang.TURTLE;
+    }
+    if (FORMAT_NQUADS.getValue().equals(format)) {
+      return Lang.NQUADS;
+    }
+    return Lang.NTRIPLES;
+  }
+}
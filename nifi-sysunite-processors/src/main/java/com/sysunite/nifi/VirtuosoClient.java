@@ -1,39 +1,63 @@
 package com.sysunite.nifi;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ProcessorLog;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
-import virtuoso.jena.driver.ISQLChannel;
-import virtuoso.jena.driver.Virtuoso;
+import virtuoso.jena.driver.VirtuosoPool;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.sql.ResultSet;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.SQLTimeoutException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({"sparql, virtuoso"})
 @CapabilityDescription("A querying processor for Virtuoso.")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="", description="")})
-@WritesAttributes({@WritesAttribute(attribute="", description="")})
+@WritesAttributes({
+  @WritesAttribute(attribute="record.count", description="The number of result rows in a flowfile, unless every row is a flowfile of its own."),
+  @WritesAttribute(attribute=VirtuosoClient.PAGE_OFFSET, description="Where the next page starts, on an incoming flowfile that is paged through.")})
+@Stateful(scopes = {Scope.LOCAL, Scope.CLUSTER}, description = "Without incoming flowfiles, a paged query keeps its query and the start of the next page, "
+  + "so an interrupted export continues at that page and a finished one is not run again. An incremental query keeps the highest watermark it has sent on, in the cluster state.")
 public class VirtuosoClient extends AbstractProcessor {
 
   public static final Relationship RESULT_ROW = new Relationship.Builder()
     .name("result row")
-    .description("All the found result rows are sent over this link (one by one).")
+    .description("All the found result rows are sent over this link (one by one, or together depending on the output mode).")
     .build();
 
   public static final Relationship ORIGINAL = new Relationship.Builder()
@@ -41,63 +65,319 @@ public class VirtuosoClient extends AbstractProcessor {
     .description("Input for this processor will be transferred to this relationship.")
     .build();
 
+  public static final Relationship TIMEOUT = new Relationship.Builder()
+    .name("timeout")
+    .description("Input whose query ran longer than the query timeout. Rows that were sent on before the timeout are not taken back.")
+    .build();
+
+  public static final PropertyDescriptor CONNECTION_SERVICE = new PropertyDescriptor
+    .Builder().name("connection service")
+    .description("A Virtuoso connection pool, or a Jena quad store, that is shared with other processors. Without it, the processor keeps "
+      + "a pool of its own for the address, user and password below.")
+    .required(false)
+    .identifiesControllerService(VirtuosoConnectionService.class)
+    .build();
+
   public static final PropertyDescriptor ADDRESS = new PropertyDescriptor
     .Builder().name("address")
-    .description("The Virtuoso server address 'ip:port'")
-    .required(true)
+    .description("The Virtuoso server address 'ip:port', or a comma separated list of the addresses of read replicas.")
+    .required(false)
     .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
     .build();
 
   public static final PropertyDescriptor USER = new PropertyDescriptor
     .Builder().name("user")
     .description("Virtuoso login user")
-    .required(true)
+    .required(false)
     .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
     .build();
 
   public static final PropertyDescriptor PASSWORD = new PropertyDescriptor
     .Builder().name("password")
     .description("Virtuoso login password")
-    .required(true)
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor DEFAULT_GRAPHS = new PropertyDescriptor
+    .Builder().name("default graphs")
+    .description("Comma separated IRIs of the graphs that make up the default graph of the query (nifi expressions supported, evaluated for "
+      + "every flowfile; a batch runs one query per set of graphs). Without graphs, the default graph of the connection service is used, "
+      + "or else all graphs in the store.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .expressionLanguageSupported(true)
+    .build();
+
+  public static final PropertyDescriptor NAMED_GRAPHS = new PropertyDescriptor
+    .Builder().name("named graphs")
+    .description("Comma separated IRIs of the graphs that GRAPH patterns of the query can match (nifi expressions supported, evaluated for "
+      + "every flowfile; a batch runs one query per set of graphs).")
+    .required(false)
     .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .expressionLanguageSupported(true)
     .build();
 
   public static final PropertyDescriptor SEPARATOR = new PropertyDescriptor
     .Builder().name("result separator")
-    .description("Separator used to separate column values.")
-    .required(true)
+    .description("Separator used to separate column values (not used for RDF output).")
+    .required(false)
     .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
     .build();
 
   public static final PropertyDescriptor SELECT = new PropertyDescriptor
     .Builder().name("select")
-    .description("Comma separated select vars.")
-    .required(true)
+    .description("Comma separated select vars (not used for RDF output).")
+    .required(false)
     .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
     .build();
 
   public static final PropertyDescriptor QUERY = new PropertyDescriptor
     .Builder().name("query")
-    .description("The SPARQL query (nifi expressions supported).")
+    .description("The SPARQL query (nifi expressions supported, unless variables are bound to attributes).")
+    .required(true)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .expressionLanguageSupported(true)
+    .build();
+
+
+
+
+  public static final AllowableValue OUTPUT_ROW_PER_FLOWFILE = new AllowableValue("Row per FlowFile", "Row per FlowFile",
+    "Every result row is a flowfile of its own, with the values separated by the result separator.");
+
+  public static final AllowableValue OUTPUT_SEPARATED_VALUES = new AllowableValue("Separated values", "Separated values",
+    "The rows are streamed into one flowfile (or one per 'rows per flowfile'), one row per line with the values separated by the result separator.");
+
+  public static final AllowableValue OUTPUT_NDJSON = new AllowableValue("NDJSON", "NDJSON",
+    "The rows are streamed into one flowfile (or one per 'rows per flowfile'), one JSON object per line with the select vars as fields.");
+
+  public static final AllowableValue OUTPUT_NTRIPLES = new AllowableValue("N-Triples", "N-Triples",
+    "For a CONSTRUCT or DESCRIBE query: the triples are streamed into one flowfile (or one per 'rows per flowfile'), as N-Triples.");
+
+  public static final AllowableValue OUTPUT_NQUADS = new AllowableValue("N-Quads", "N-Quads",
+    "For a CONSTRUCT or DESCRIBE query: the triples are streamed as N-Quads, in the result graph.");
+
+  public static final AllowableValue OUTPUT_TURTLE = new AllowableValue("Turtle", "Turtle",
+    "For a CONSTRUCT or DESCRIBE query: the triples are streamed as Turtle, one triple per line, shortened with the prefixes.");
+
+  public static final PropertyDescriptor OUTPUT_MODE = new PropertyDescriptor
+    .Builder().name("output mode")
+    .description("How the result rows are written to flowfiles.")
     .required(true)
+    .allowableValues(OUTPUT_ROW_PER_FLOWFILE, OUTPUT_SEPARATED_VALUES, OUTPUT_NDJSON, OUTPUT_NTRIPLES, OUTPUT_NQUADS, OUTPUT_TURTLE)
+    .defaultValue(OUTPUT_ROW_PER_FLOWFILE.getValue())
+    .build();
+
+  public static final PropertyDescriptor RESULT_GRAPH = new PropertyDescriptor
+    .Builder().name("result graph")
+    .description("The IRI of the graph of the quads in the N-Quads output mode.")
+    .required(false)
     .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
     .expressionLanguageSupported(true)
     .build();
 
+  public static final PropertyDescriptor ROWS_PER_FLOWFILE = new PropertyDescriptor
+    .Builder().name("rows per flowfile")
+    .description("The maximum number of rows in one flowfile for the streamed output modes, 0 puts the whole result in one flowfile.")
+    .required(true)
+    .defaultValue("0")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor FETCH_SIZE = new PropertyDescriptor
+    .Builder().name("fetch size")
+    .description("The number of result rows fetched from Virtuoso at a time, 0 uses the default of the driver.")
+    .required(true)
+    .defaultValue("0")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor LITERAL_BINDINGS = new PropertyDescriptor
+    .Builder().name("literal bindings")
+    .description("Comma separated query variables that are bound to the flowfile attribute with the same name, as a string literal. "
+      + "With bound variables the query is a template that is prepared once, instead of evaluating expressions in it for every flowfile.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor IRI_BINDINGS = new PropertyDescriptor
+    .Builder().name("iri bindings")
+    .description("Comma separated query variables that are bound to the flowfile attribute with the same name, as an IRI.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor PREPARED_STATEMENT = new PropertyDescriptor
+    .Builder().name("prepared statement")
+    .description("Whether bound variables are sent as parameters of a prepared statement, so the query text is the same for every flowfile "
+      + "and Virtuoso can reuse its plan, instead of being written into the query.")
+    .required(true)
+    .allowableValues("true", "false")
+    .defaultValue("false")
+    .build();
+
+  public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+    .Builder().name("batch size")
+    .description("The number of flowfiles whose bound variables are looked up together in one select query, with a VALUES block. "
+      + "Each result row is sent on as a child of the flowfile it belongs to. A query with sub queries, aggregates, LIMIT, OFFSET, "
+      + "GROUP BY or HAVING works on the rows of all flowfiles together, so it cannot be batched.")
+    .required(true)
+    .defaultValue("1")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor CACHE_ENTRIES = new PropertyDescriptor
+    .Builder().name("cache entries")
+    .description("The number of query results that are kept in memory, so the same query is answered without asking Virtuoso again. "
+      + "0 disables the cache. Batched and paged queries are not cached.")
+    .required(true)
+    .defaultValue("0")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor
+    .Builder().name("cache size")
+    .description("The maximum (estimated) memory used by the cached results, a result that is larger is not cached.")
+    .required(true)
+    .defaultValue("10 MB")
+    .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor CACHE_TTL = new PropertyDescriptor
+    .Builder().name("cache time to live")
+    .description("How long a cached result is used before the query is run again.")
+    .required(true)
+    .defaultValue("5 mins")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor PAGE_SIZE = new PropertyDescriptor
+    .Builder().name("page size")
+    .description("Runs a select query in pages of this many rows, one page per run, so huge results are not cut off at the maximum "
+      + "result size of Virtuoso and are sent on while the export is going. 0 runs the query at once.")
+    .required(true)
+    .defaultValue("0")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor PAGE_ORDER = new PropertyDescriptor
+    .Builder().name("page order")
+    .description("The order of the rows that the pages are cut from, i.e. '?s ?p ?o', required with a page size. It has to order the rows "
+      + "completely, otherwise pages may overlap or skip rows. An ORDER BY in the query itself is not kept by the pages.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor QUERY_TIMEOUT = new PropertyDescriptor
+    .Builder().name("query timeout")
+    .description("How long Virtuoso may run a query before it is cancelled, in whole seconds. 0 secs waits for the query as long as it takes.")
+    .required(true)
+    .defaultValue("0 secs")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor MAX_RUNNING_QUERIES = new PropertyDescriptor
+    .Builder().name("max running queries")
+    .description("The maximum number of queries this processor runs at the same time. A task that finds them all running waits "
+      + "at most the 'running query wait' for one to finish, so slow queries do not take all threads. 0 runs a query for every concurrent task.")
+    .required(true)
+    .defaultValue("0")
+    .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor RUNNING_QUERY_WAIT = new PropertyDescriptor
+    .Builder().name("running query wait")
+    .description("How long a task waits for one of the 'max running queries' to finish. After that its flowfile is penalized and goes "
+      + "back into the queue, while the other flowfiles are still run.")
+    .required(true)
+    .defaultValue("1 sec")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor SHARDS = new PropertyDescriptor
+    .Builder().name("shards")
+    .description("Splits a select query into this many parts that run at the same time, each on a connection of its own, and merges their rows. "
+      + "A row goes to the part that the hash of its shard variable points to. 1 runs the query as a whole.")
+    .required(true)
+    .defaultValue("1")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor SHARD_VARIABLE = new PropertyDescriptor
+    .Builder().name("shard variable")
+    .description("The variable whose value decides the shard of a row, i.e. 's'. A variable with many distinct values spreads the rows evenly; "
+      + "rows where it is a blank node or unbound all go to the first shard.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor WATERMARK_VARIABLE = new PropertyDescriptor
+    .Builder().name("watermark variable")
+    .description("Without incoming flowfiles, only sends on the rows where this variable, i.e. a modification time or an increasing number, "
+      + "is at or above the highest value of the earlier runs, leaving out the rows at that value that were sent on already. "
+      + "When more than 10000 rows share the highest value, the next run only sends on the rows above it. Rows without the variable "
+      + "are only sent on by the first run. The variable has to be in the result of the query.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor INITIAL_WATERMARK = new PropertyDescriptor
+    .Builder().name("initial watermark")
+    .description("The watermark of the first run, as a SPARQL value, i.e. '\"2016-01-01T00:00:00Z\"^^xsd:dateTime'. Without it, the first run sends on all rows.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final String PAGE_OFFSET = "virtuoso.page.offset";
+  private static final String STATE_QUERY = "query";
+  private static final String STATE_OFFSET = "offset";
+  private static final String STATE_DONE = "done";
+  private static final String STATE_WATERMARK_QUERY = "watermark.query";
+  private static final String STATE_WATERMARK = "watermark";
+  private static final String STATE_WATERMARK_ROWS = "watermark.rows";
+  // "true" when the rows at the watermark were too many to keep, the next run starts above the watermark
+  private static final String STATE_WATERMARK_EXCLUSIVE = "watermark.exclusive";
 
+  // the cluster state lives in ZooKeeper, which keeps at most 1 MB per node; this many hashes take up about 230 KB
+  private static final int MAX_WATERMARK_ROWS = 10000;
 
+  // the variable that tells to which flowfile of a batch a result row belongs
+  private static final String BATCH_INDEX = "nifi_batch_index";
+
+  // the rows the shards of a query can be ahead of the flowfiles
+  private static final int SHARD_QUEUE_SIZE = 1024;
 
   private List<PropertyDescriptor> descriptors;
 
   private AtomicReference<Set<Relationship>> relationships;
 
   private volatile Set<String> dynamicPropertyNames;
-  private Map<Relationship, PropertyValue> dynamicProperties;
+  // the prefixes of the dynamic properties, built once per schedule
+  private volatile IriPrefixes prefixes;
+  private volatile String prefixHeader;
+  private volatile PrefixMap turtlePrefixes;
+  private volatile String turtleHeader;
+  // null if no variables are bound, the query then is evaluated for every flowfile
+  private volatile QueryTemplate template;
+  // without the prefixes
+  private volatile String preparedQuery;
+  // null if caching is off, a new cache for every schedule
+  private volatile QueryResultCache cache;
+
+  private volatile QuadStore store;
+  // only a store of this processor itself is closed when it stops
+  private volatile boolean ownsStore;
+  private volatile long maxWaitMillis;
 
-  private Virtuoso quadStore;
+  // null if the number of running queries is not limited
+  private volatile Semaphore runningQueries;
+  // the connections with a running query, to cancel them when the processor stops
+  private final Set<QuadStore.Connection> running = Collections.newSetFromMap(new ConcurrentHashMap<QuadStore.Connection, Boolean>());
+  private volatile boolean stopping;
 
-  // url -> prefix (yeah, that's reversed logic)
-  private Map<String, String> prefixMap;
+  // runs the shards of queries, null if queries are not sharded
+  private volatile ExecutorService shardExecutor;
 
   private ProcessorLog logger;
 
@@ -134,13 +414,291 @@ public class VirtuosoClient extends AbstractProcessor {
 
   @OnScheduled
   public void onScheduled(final ProcessContext context) {
+    // url -> prefix (yeah, that's reversed logic)
+    final Map<String, String> prefixMap = new HashMap<>();
     for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
       if (descriptor.isDynamic()) {
-        dynamicProperties.put(new Relationship.Builder().name(descriptor.getName()).build(), context.getProperty(descriptor));
+        prefixMap.put(context.getProperty(descriptor).getValue(), descriptor.getName());
+      }
+    }
+    prefixes = new IriPrefixes(prefixMap);
+    prefixHeader = prefixes.header();
+
+    final Map<String, String> namespaces = new HashMap<>();
+    for (final Map.Entry<String, String> prefix : prefixMap.entrySet()) {
+      namespaces.put(prefix.getValue(), prefix.getKey());
+    }
+    turtlePrefixes = PrefixMapFactory.createForOutput(namespaces);
+    turtleHeader = TripleRowWriter.turtleHeader(turtlePrefixes);
+
+    final int cacheEntries = context.getProperty(CACHE_ENTRIES).asInteger();
+    cache = cacheEntries == 0 ? null : new QueryResultCache(cacheEntries,
+      context.getProperty(CACHE_SIZE).asDataSize(DataUnit.B).longValue(),
+      context.getProperty(CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS));
+
+    final Set<String> literals = variables(context.getProperty(LITERAL_BINDINGS).getValue());
+    final Set<String> iris = variables(context.getProperty(IRI_BINDINGS).getValue());
+    if (literals.isEmpty() && iris.isEmpty()) {
+      template = null;
+      preparedQuery = null;
+    } else {
+      template = new QueryTemplate(context.getProperty(QUERY).getValue(), literals, iris);
+      preparedQuery = context.getProperty(PREPARED_STATEMENT).asBoolean() ? template.prepared() : null;
+    }
+
+    final VirtuosoConnectionService service = context.getProperty(CONNECTION_SERVICE).asControllerService(VirtuosoConnectionService.class);
+    if (service != null) {
+      store = service.getStore();
+      ownsStore = false;
+      maxWaitMillis = service.getMaxWait(TimeUnit.MILLISECONDS);
+    } else {
+      store = new VirtuosoQuadStore(new VirtuosoPool(
+        VirtuosoConnectionPool.addresses(context.getProperty(ADDRESS).getValue()),
+        context.getProperty(USER).getValue(),
+        context.getProperty(PASSWORD).getValue(),
+        context.getProperty(VirtuosoConnectionPool.MAX_CONNECTIONS).asInteger(),
+        context.getProperty(VirtuosoConnectionPool.IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+        context.getProperty(VirtuosoConnectionPool.VALIDATION_QUERY).getValue(),
+        null,
+        VirtuosoConnectionPool.balancing(context.getProperty(VirtuosoConnectionPool.LOAD_BALANCING).getValue()),
+        context.getProperty(VirtuosoConnectionPool.EJECT_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS)));
+      ownsStore = true;
+      maxWaitMillis = context.getProperty(VirtuosoConnectionPool.MAX_WAIT).asTimePeriod(TimeUnit.MILLISECONDS);
+    }
+
+    final int maxRunning = context.getProperty(MAX_RUNNING_QUERIES).asInteger();
+    runningQueries = maxRunning == 0 ? null : new Semaphore(maxRunning);
+    stopping = false;
+
+    // a thread for every shard that can run at once: all shards of every task, within the running queries
+    final int shards = context.getProperty(SHARDS).asInteger();
+    final int shardThreads = maxRunning == 0 ? shards * context.getMaxConcurrentTasks()
+      : Math.min(shards * context.getMaxConcurrentTasks(), maxRunning / shards * shards);
+    shardExecutor = shards == 1 ? null : Executors.newFixedThreadPool(shardThreads);
+  }
+
+  /**
+   * The default and named graphs a query reads from.
+   */
+  private static final class Graphs {
+
+    private final List<String> defaults;
+    private final List<String> named;
+
+    private Graphs(List<String> defaults, List<String> named) {
+      this.defaults = defaults;
+      this.named = named;
+    }
+
+    /**
+     * @return the graphs, and whether the query is run as a construct query, as the start of the key of a query
+     *         in the cache and the state
+     */
+    private String key(boolean construct) {
+      final StringBuilder key = new StringBuilder(construct ? "construct\n" : "select\n");
+      for (final String graph : defaults) {
+        key.append("default <").append(graph).append(">\n");
+      }
+      for (final String graph : named) {
+        key.append("named <").append(graph).append(">\n");
       }
+      return key.toString();
     }
   }
 
+  /**
+   * @return the graphs the query for the flowfile reads from
+   * @throws IllegalArgumentException if a graph is not a valid IRI
+   */
+  private Graphs graphs(ProcessContext context, FlowFile flowFile) {
+    // restricting the graphs lets the store use its graph indexes instead of scanning all graphs
+    final List<String> defaultGraphs = graphs(context, DEFAULT_GRAPHS, flowFile);
+    final List<String> namedGraphs = graphs(context, NAMED_GRAPHS, flowFile);
+    if (defaultGraphs.isEmpty() && namedGraphs.isEmpty() && store.getDefaultGraph() != null) {
+      defaultGraphs.add(store.getDefaultGraph());
+    }
+    return new Graphs(defaultGraphs, namedGraphs);
+  }
+
+  private static List<String> graphs(ProcessContext context, PropertyDescriptor descriptor, FlowFile flowFile) {
+    final List<String> graphs = new ArrayList<>();
+    if (!context.getProperty(descriptor).isSet()) {
+      return graphs;
+    }
+    final String value = flowFile != null ? context.getProperty(descriptor).evaluateAttributeExpressions(flowFile).getValue()
+      : context.getProperty(descriptor).evaluateAttributeExpressions().getValue();
+    for (final String graph : value.split(",")) {
+      if (graph.trim().isEmpty()) {
+        continue;
+      }
+      if (!QueryTemplate.isIri(graph.trim())) {
+        throw new IllegalArgumentException("Not a valid graph IRI for " + descriptor.getName() + ": " + graph.trim());
+      }
+      graphs.add(graph.trim());
+    }
+    return graphs;
+  }
+
+  private static Set<String> variables(String bindings) {
+    final Set<String> variables = new HashSet<>();
+    if (bindings != null) {
+      for (final String variable : bindings.split(",")) {
+        // the variable may be written with its '?'
+        final String name = variable.trim().replaceFirst("^[?$]", "");
+        if (!name.isEmpty()) {
+          variables.add(name);
+        }
+      }
+    }
+    return variables;
+  }
+
+  /**
+   * Cancels the running queries, their flowfiles go back into the queue.
+   */
+  @OnUnscheduled
+  public void onUnscheduled() {
+    stopping = true;
+    for (final QuadStore.Connection connection : running) {
+      try {
+        connection.cancel();
+      } catch (SQLException e) {
+        logger.warn("Failed to cancel a running query: {}", new Object[]{e.getMessage()});
+      }
+    }
+  }
+
+  @OnStopped
+  public void onStopped() {
+    if (shardExecutor != null) {
+      shardExecutor.shutdownNow();
+      shardExecutor = null;
+    }
+    if (ownsStore && store != null) {
+      store.close();
+    }
+    store = null;
+  }
+
+  @Override
+  protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+    final List<ValidationResult> results = new ArrayList<>();
+    if (!context.getProperty(CONNECTION_SERVICE).isSet()) {
+      for (final PropertyDescriptor descriptor : Arrays.asList(ADDRESS, USER, PASSWORD)) {
+        if (!context.getProperty(descriptor).isSet()) {
+          results.add(new ValidationResult.Builder()
+            .subject(descriptor.getName())
+            .valid(false)
+            .explanation("is required when no connection service is set")
+            .build());
+        }
+      }
+    }
+
+    final String mode = context.getProperty(OUTPUT_MODE).getValue();
+    if (isRdf(mode)) {
+      String problem = null;
+      if (OUTPUT_NQUADS.getValue().equals(mode) && !context.getProperty(RESULT_GRAPH).isSet()) {
+        problem = "needs a result graph";
+      } else if (context.getProperty(BATCH_SIZE).asInteger() > 1) {
+        problem = "cannot be combined with a batch size above 1";
+      } else if (context.getProperty(PAGE_SIZE).asInteger() > 0) {
+        problem = "cannot be combined with a page size";
+      } else if (context.getProperty(SHARDS).asInteger() > 1) {
+        problem = "cannot be combined with shards";
+      } else if (context.getProperty(WATERMARK_VARIABLE).isSet()) {
+        problem = "cannot be combined with a watermark variable";
+      }
+      if (problem != null) {
+        results.add(new ValidationResult.Builder()
+          .subject(OUTPUT_MODE.getName())
+          .valid(false)
+          .explanation(mode + " output " + problem)
+          .build());
+      }
+    } else {
+      for (final PropertyDescriptor descriptor : Arrays.asList(SELECT, SEPARATOR)) {
+        if (!context.getProperty(descriptor).isSet()) {
+          results.add(new ValidationResult.Builder()
+            .subject(descriptor.getName())
+            .valid(false)
+            .explanation("is required for select results")
+            .build());
+        }
+      }
+    }
+
+    if (context.getProperty(BATCH_SIZE).asInteger() > 1 && !isRdf(mode)) {
+      final Set<String> literals = variables(context.getProperty(LITERAL_BINDINGS).getValue());
+      final Set<String> iris = variables(context.getProperty(IRI_BINDINGS).getValue());
+      String problem = null;
+      if (literals.isEmpty() && iris.isEmpty()) {
+        problem = "needs literal or iri bindings to look up";
+      } else if (context.getProperty(QUERY).isSet() && !new QueryTemplate(context.getProperty(QUERY).getValue(), literals, iris).canBatch()) {
+        problem = "only works for a select query without sub queries, aggregates, LIMIT, OFFSET, GROUP BY or HAVING";
+      } else if (context.getProperty(PREPARED_STATEMENT).asBoolean()) {
+        problem = "cannot be combined with a prepared statement";
+      } else if (context.getProperty(ROWS_PER_FLOWFILE).asInteger() > 0) {
+        problem = "cannot be combined with rows per flowfile, the rows of a flowfile in a batch go into one flowfile";
+      } else if (context.getProperty(PAGE_SIZE).asInteger() > 0) {
+        problem = "cannot be combined with a page size";
+      } else if (context.getProperty(SHARDS).asInteger() > 1) {
+        problem = "cannot be combined with shards";
+      }
+      if (problem != null) {
+        results.add(new ValidationResult.Builder()
+          .subject(BATCH_SIZE.getName())
+          .valid(false)
+          .explanation("a batch size above 1 " + problem)
+          .build());
+      }
+    }
+
+    if (context.getProperty(WATERMARK_VARIABLE).isSet()) {
+      String problem = null;
+      if (context.getProperty(PAGE_SIZE).asInteger() > 0) {
+        problem = "cannot be combined with a page size";
+      } else if (context.getProperty(SHARDS).asInteger() > 1) {
+        problem = "cannot be combined with shards";
+      }
+      if (problem != null) {
+        results.add(new ValidationResult.Builder()
+          .subject(WATERMARK_VARIABLE.getName())
+          .valid(false)
+          .explanation("a watermark variable " + problem)
+          .build());
+      }
+    }
+
+    if (context.getProperty(PAGE_SIZE).asInteger() > 0 && !context.getProperty(PAGE_ORDER).isSet()) {
+      results.add(new ValidationResult.Builder()
+        .subject(PAGE_ORDER.getName())
+        .valid(false)
+        .explanation("is required with a page size, pages of rows in no fixed order may overlap or skip rows")
+        .build());
+    }
+
+    if (context.getProperty(SHARDS).asInteger() > 1) {
+      String problem = null;
+      final int maxRunning = context.getProperty(MAX_RUNNING_QUERIES).asInteger();
+      if (!context.getProperty(SHARD_VARIABLE).isSet()) {
+        problem = "need a shard variable";
+      } else if (maxRunning > 0 && maxRunning < context.getProperty(SHARDS).asInteger()) {
+        problem = "each count as a running query, so they need at least as many max running queries";
+      } else if (context.getProperty(PAGE_SIZE).asInteger() > 0) {
+        problem = "cannot be combined with a page size";
+      }
+      if (problem != null) {
+        results.add(new ValidationResult.Builder()
+          .subject(SHARDS.getName())
+          .valid(false)
+          .explanation("shards " + problem)
+          .build());
+      }
+    }
+    return results;
+  }
+
 
   @Override
   protected void init(final ProcessorInitializationContext context) {
@@ -148,22 +706,51 @@ public class VirtuosoClient extends AbstractProcessor {
     logger = context.getLogger();
 
     final List<PropertyDescriptor> descriptors = new ArrayList<>();
+    descriptors.add(CONNECTION_SERVICE);
     descriptors.add(ADDRESS);
     descriptors.add(USER);
     descriptors.add(PASSWORD);
+    descriptors.add(VirtuosoConnectionPool.MAX_CONNECTIONS);
+    descriptors.add(VirtuosoConnectionPool.MAX_WAIT);
+    descriptors.add(VirtuosoConnectionPool.IDLE_TIMEOUT);
+    descriptors.add(VirtuosoConnectionPool.VALIDATION_QUERY);
+    descriptors.add(VirtuosoConnectionPool.LOAD_BALANCING);
+    descriptors.add(VirtuosoConnectionPool.EJECT_BACKOFF);
+    descriptors.add(DEFAULT_GRAPHS);
+    descriptors.add(NAMED_GRAPHS);
     descriptors.add(SEPARATOR);
     descriptors.add(SELECT);
     descriptors.add(QUERY);
+    descriptors.add(OUTPUT_MODE);
+    descriptors.add(RESULT_GRAPH);
+    descriptors.add(ROWS_PER_FLOWFILE);
+    descriptors.add(FETCH_SIZE);
+    descriptors.add(LITERAL_BINDINGS);
+    descriptors.add(IRI_BINDINGS);
+    descriptors.add(PREPARED_STATEMENT);
+    descriptors.add(BATCH_SIZE);
+    descriptors.add(CACHE_ENTRIES);
+    descriptors.add(CACHE_SIZE);
+    descriptors.add(CACHE_TTL);
+    descriptors.add(PAGE_SIZE);
+    descriptors.add(PAGE_ORDER);
+    descriptors.add(QUERY_TIMEOUT);
+    descriptors.add(MAX_RUNNING_QUERIES);
+    descriptors.add(RUNNING_QUERY_WAIT);
+    descriptors.add(SHARDS);
+    descriptors.add(SHARD_VARIABLE);
+    descriptors.add(WATERMARK_VARIABLE);
+    descriptors.add(INITIAL_WATERMARK);
     this.descriptors = Collections.unmodifiableList(descriptors);
 
     final Set<Relationship> relationships = new HashSet<>();
     relationships.add(RESULT_ROW);
     relationships.add(ORIGINAL);
+    relationships.add(TIMEOUT);
     this.relationships = new AtomicReference<>(relationships);
 
     // For dynamic properties
     this.dynamicPropertyNames = new HashSet<>();
-    this.dynamicProperties = new HashMap<>();
   }
 
   @Override
@@ -179,108 +766,777 @@ public class VirtuosoClient extends AbstractProcessor {
 
   @Override
   public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+    final Semaphore runningQueries = this.runningQueries;
+    if (runningQueries != null && !acquire(runningQueries, 1, context.getProperty(RUNNING_QUERY_WAIT).asTimePeriod(TimeUnit.MILLISECONDS))) {
+      // only the flowfile of this task waits, the processor keeps running the others
+      final FlowFile flowFile = session.get();
+      if (flowFile != null) {
+        session.transfer(session.penalize(flowFile));
+      }
+      return;
+    }
+    try {
+      trigger(context, session);
+    } finally {
+      if (runningQueries != null) {
+        runningQueries.release();
+      }
+    }
+  }
+
+  private static boolean acquire(Semaphore semaphore, int permits, long millis) {
+    try {
+      return semaphore.tryAcquire(permits, millis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void trigger(final ProcessContext context, final ProcessSession session) {
+
+    String select = context.getProperty(SELECT).getValue();
+    final ArrayList<String> selectVars = new ArrayList<>();
+    if (select != null) {
+      Collections.addAll(selectVars, select.split(","));
+    }
 
-    // Open a connection each time
-    String address = context.getProperty(ADDRESS).getValue();
-    String username = context.getProperty(USER).getValue();
-    String password = context.getProperty(PASSWORD).getValue();
+    final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+    if (batchSize > 1) {
+      onTriggerBatch(context, session, selectVars, batchSize);
+      return;
+    }
 
-    quadStore = new Virtuoso("jdbc:virtuoso://"+address, username, password);
+    final FlowFile oldFlowFile = session.get();
 
+    final QueryTemplate template = this.template;
+    // the query as it is run and with all values in it, both without the prefixes
+    final String body;
+    final String expandedBody;
+    List<String> parameters = null;
 
-    prefixMap = new HashMap<>();
-    for (final Map.Entry<Relationship, PropertyValue> dynamicProperty : dynamicProperties.entrySet()) {
-      final String prefix = dynamicProperty.getKey().toString();
-      final String uri = dynamicProperty.getValue().toString();
+    if (template != null) {
+      final Map<String, String> attributes = oldFlowFile != null ? oldFlowFile.getAttributes() : Collections.<String, String>emptyMap();
+      try {
+        expandedBody = template.bind(attributes);
+        if (preparedQuery != null) {
+          body = preparedQuery;
+          parameters = template.parameters(attributes);
+        } else {
+          body = expandedBody;
+        }
+      } catch (IllegalArgumentException e) {
+        logger.error(e.getMessage());
+        if (oldFlowFile != null) {
+          session.transfer(oldFlowFile, ORIGINAL);
+        }
+        return;
+      }
+    } else if (oldFlowFile != null) {
+      body = expandedBody = context.getProperty(QUERY).evaluateAttributeExpressions(oldFlowFile).getValue();
+    } else {
+      body = expandedBody = context.getProperty(QUERY).evaluateAttributeExpressions().getValue();
+    }
+
+    final String separator = context.getProperty(SEPARATOR).getValue();
+    final String mode = context.getProperty(OUTPUT_MODE).getValue();
+    final int rowsPerFlowFile = context.getProperty(ROWS_PER_FLOWFILE).asInteger();
+
+    final Graphs graphs;
+    try {
+      graphs = graphs(context, oldFlowFile);
+    } catch (IllegalArgumentException e) {
+      logger.error(e.getMessage());
+      if (oldFlowFile != null) {
+        session.transfer(oldFlowFile, ORIGINAL);
+      }
+      return;
+    }
+    final String query = prefixHeader + body;
+    String expanded = graphs.key(isRdf(mode)) + prefixHeader + expandedBody;
 
-      prefixMap.put(uri, prefix);
+    // the graph of N-Quads output, which is part of every cached line
+    String resultGraph = null;
+    if (OUTPUT_NQUADS.getValue().equals(mode)) {
+      resultGraph = (oldFlowFile != null ? context.getProperty(RESULT_GRAPH).evaluateAttributeExpressions(oldFlowFile)
+        : context.getProperty(RESULT_GRAPH).evaluateAttributeExpressions()).getValue();
+      expanded += "\n# " + resultGraph;
     }
+    final String graph = resultGraph;
 
-    String select = context.getProperty(SELECT).getValue();
-    ArrayList<String> selectVars = new ArrayList<>();
-    Collections.addAll(selectVars, select.split(","));
+    final int pageSize = context.getProperty(PAGE_SIZE).asInteger();
+    if (pageSize > 0) {
+      onTriggerPage(context, session, oldFlowFile, graphs, body, expanded, parameters, selectVars, pageSize);
+      return;
+    }
 
-    String query = "sparql\n";
-    for(String uri : prefixMap.keySet()) {
-      query += "PREFIX "+prefixMap.get(uri)+": <"+uri+">\n";
+    if (oldFlowFile == null && context.getProperty(WATERMARK_VARIABLE).isSet()) {
+      onTriggerIncremental(context, session, graphs, body, expanded, parameters, selectVars);
+      return;
     }
 
-    FlowFile oldFlowFile = session.get();
+    // a repeated query is answered from the cache
+    final QueryResultCache cache = this.cache;
+    if (cache != null) {
+      final List<String> cached = cache.get(expanded);
+      if (cached != null) {
+        session.adjustCounter("Cache hits", 1, false);
+        final Iterator<String> iterator = cached.iterator();
+        try {
+          transferRows(session, oldFlowFile, () -> iterator.hasNext() ? iterator.next() : null, mode, rowsPerFlowFile);
+        } catch (SQLException e) {
+          // cached rows are not read from a result
+          throw new ProcessException(e);
+        }
+        if (oldFlowFile != null) {
+          session.transfer(oldFlowFile, ORIGINAL);
+        }
+        return;
+      }
+      session.adjustCounter("Cache misses", 1, false);
+    }
+    final QueryResultCache.Collector collector = cache != null ? cache.collector(expanded) : null;
 
-    if (oldFlowFile != null) {
-      query += context.getProperty(QUERY).evaluateAttributeExpressions(oldFlowFile).getValue();
-    } else {
-      query += context.getProperty(QUERY).evaluateAttributeExpressions().getValue();
+    final int shards = context.getProperty(SHARDS).asInteger();
+    try {
+      if (shards > 1) {
+        // every shard is a running query, the task holds the permit of the first one
+        final Semaphore runningQueries = this.runningQueries;
+        if (runningQueries != null
+          && !acquire(runningQueries, shards - 1, context.getProperty(RUNNING_QUERY_WAIT).asTimePeriod(TimeUnit.MILLISECONDS))) {
+          if (oldFlowFile != null) {
+            session.transfer(session.penalize(oldFlowFile));
+          }
+          return;
+        }
+        final boolean ran;
+        try {
+          final String variable = context.getProperty(SHARD_VARIABLE).getValue().trim().replaceFirst("^[?$]", "");
+          ran = queryShards(context, graphs, body, parameters, shards, variable, selectVars, separator, OUTPUT_NDJSON.getValue().equals(mode),
+            rows -> transferCollected(session, oldFlowFile, rows, collector, mode, rowsPerFlowFile));
+        } finally {
+          if (runningQueries != null) {
+            runningQueries.release(shards - 1);
+          }
+        }
+        if (!ran) {
+          // the rows of the other shards are only part of the result, the session is rolled back
+          throw new ProcessException("A shard of the query failed, the rows of the query are not sent on");
+        }
+      } else {
+        query(context, graphs, isRdf(mode), query, parameters, result -> {
+          if (isRdf(mode)) {
+            final TripleRowWriter writer = OUTPUT_TURTLE.getValue().equals(mode) ? TripleRowWriter.turtle(turtlePrefixes)
+              : graph != null ? TripleRowWriter.nquads(NodeFactory.createURI(graph)) : TripleRowWriter.ntriples();
+            transferCollected(session, oldFlowFile, () -> result.next() ? writer.format(result) : null, collector, mode, rowsPerFlowFile);
+            return;
+          }
+          final ResultRowWriter writer = new ResultRowWriter(result.getVariables(), selectVars, separator, OUTPUT_NDJSON.getValue().equals(mode), prefixes);
+          transferCollected(session, oldFlowFile, () -> result.next() ? writer.format(result) : null, collector, mode, rowsPerFlowFile);
+        });
+      }
+    } catch (SQLTimeoutException e) {
+      if (oldFlowFile != null) {
+        session.transfer(session.penalize(oldFlowFile), TIMEOUT);
+      }
+      return;
+    }
+
+    if(oldFlowFile != null) {
+      session.transfer(oldFlowFile, ORIGINAL);
     }
+  }
 
-    String separator = context.getProperty(SEPARATOR).getValue();
+  /**
+   * Runs the next page of the query, as a sub query whose rows are ordered by the page order, and sends its
+   * rows on right away. Where the next page starts is kept on the incoming flowfile, which goes back into the
+   * queue until the last page, or in the state of the processor when it runs without input, so an interrupted
+   * export continues where it was. A finished export stays finished until the query changes.
+   */
+  private void onTriggerPage(final ProcessContext context, final ProcessSession session, FlowFile flowFile, Graphs graphs, String body, String expanded,
+                             List<String> parameters, final List<String> selectVars, int pageSize) {
 
-    Statement stmt = null;
+    final StateManager stateManager = context.getStateManager();
+    long offset = 0;
     try {
-      stmt = ISQLChannel.executeQuery(quadStore.getVirtGraph(), query);
-      ResultSet result = stmt.executeQuery(query);
-
-      while(result.next()) {
-        String resultRow = null;
-        for(String selectVar : selectVars) {
-          String value = result.getString(selectVar);
-          for(String uri : prefixMap.keySet()) {
-            if(value.startsWith(uri)) {
-              value = prefixMap.get(uri) + ":" + value.substring(uri.length());
-            }
+      if (flowFile != null) {
+        final String page = flowFile.getAttribute(PAGE_OFFSET);
+        offset = page != null ? Long.parseLong(page) : 0;
+      } else {
+        final Map<String, String> state = stateManager.getState(Scope.LOCAL).toMap();
+        if (expanded.equals(state.get(STATE_QUERY))) {
+          if (Boolean.parseBoolean(state.get(STATE_DONE))) {
+            context.yield();
+            return;
           }
-          if(value != null) {
+          offset = Long.parseLong(state.get(STATE_OFFSET));
+        }
+      }
+    } catch (IOException e) {
+      throw new ProcessException(e);
+    }
+
+    // the order of a sub query is not kept by the query around it, so it goes with the OFFSET and LIMIT
+    final String query = prefixHeader
+      + "SELECT * WHERE {\n  {\n" + body + "\n  }\n}\n"
+      + "ORDER BY " + context.getProperty(PAGE_ORDER).getValue() + "\nOFFSET " + offset + " LIMIT " + pageSize;
 
-            // Begin condition
-            if(resultRow == null) {
-              resultRow = value;
+    final String separator = context.getProperty(SEPARATOR).getValue();
+    final String mode = context.getProperty(OUTPUT_MODE).getValue();
+    final int[] count = new int[1];
+    final FlowFile parent = flowFile;
+
+    final boolean ran;
+    try {
+      ran = query(context, graphs, false, query, parameters, result -> {
+        final ResultRowWriter writer = new ResultRowWriter(result.getVariables(), selectVars, separator, OUTPUT_NDJSON.getValue().equals(mode), prefixes);
+        transferRows(session, parent, () -> {
+          if (!result.next()) {
+            return null;
+          }
+          count[0]++;
+          return writer.format(result);
+        }, mode, context.getProperty(ROWS_PER_FLOWFILE).asInteger());
+      });
+    } catch (SQLTimeoutException e) {
+      // the flowfile keeps the page it timed out on, and the state is left as it is
+      if (flowFile != null) {
+        session.transfer(session.penalize(flowFile), TIMEOUT);
+      }
+      return;
+    }
+
+    // a failed page ends the query like any failed query, but the state keeps its position
+    final boolean last = !ran || count[0] < pageSize;
+    final long next = offset + pageSize;
+
+    if (flowFile != null) {
+      if (last) {
+        flowFile = session.removeAttribute(flowFile, PAGE_OFFSET);
+        session.transfer(flowFile, ORIGINAL);
+      } else {
+        // back into the queue for the next page
+        flowFile = session.putAttribute(flowFile, PAGE_OFFSET, String.valueOf(next));
+        session.transfer(flowFile);
+      }
+      return;
+    }
+
+    if (!ran) {
+      return;
+    }
+    // the page is sent on before the state moves past it
+    session.commit();
+    try {
+      // a finished export is marked done, clearing the state would start it all over on the next run
+      final Map<String, String> state = new HashMap<>();
+      state.put(STATE_QUERY, expanded);
+      state.put(STATE_OFFSET, String.valueOf(last ? offset + count[0] : next));
+      if (last) {
+        state.put(STATE_DONE, "true");
+      }
+      stateManager.setState(state, Scope.LOCAL);
+    } catch (IOException e) {
+      throw new ProcessException(e);
+    }
+  }
+
+  /**
+   * Runs the query for the rows at or above the watermark of the last run, in the order of the watermark
+   * variable, and keeps the watermark of the last row in the cluster state once the rows are sent on, with
+   * hashes of the rows at that watermark: a row with the same value that shows up later is sent on in the
+   * next run, the ones that were sent on are not. Beyond {@link #MAX_WATERMARK_ROWS} rows at the watermark, no
+   * hashes are kept and the next run starts above the watermark. Rows without the variable are only sent on until
+   * the state is first saved. A changed query starts again at the initial watermark.
+   */
+  private void onTriggerIncremental(final ProcessContext context, final ProcessSession session, Graphs graphs, String body, String expanded,
+                                    List<String> parameters, final List<String> selectVars) {
+
+    final StateManager stateManager = context.getStateManager();
+    final String variable = context.getProperty(WATERMARK_VARIABLE).getValue().trim().replaceFirst("^[?$]", "");
+    String watermark = context.getProperty(INITIAL_WATERMARK).getValue();
+    // whether an earlier run of the query saved its state
+    boolean saved = false;
+    boolean exclusive = false;
+    // the rows at the watermark that were sent on, by hash
+    final Set<String> sent = new HashSet<>();
+    try {
+      final Map<String, String> state = stateManager.getState(Scope.CLUSTER).toMap();
+      if (expanded.equals(state.get(STATE_WATERMARK_QUERY))) {
+        saved = true;
+        // empty when the earlier runs only had rows without the variable
+        if (!state.get(STATE_WATERMARK).isEmpty()) {
+          watermark = state.get(STATE_WATERMARK);
+        }
+        exclusive = "true".equals(state.get(STATE_WATERMARK_EXCLUSIVE));
+        final String rows = state.get(STATE_WATERMARK_ROWS);
+        if (rows != null && !rows.isEmpty()) {
+          Collections.addAll(sent, rows.split(" "));
+        }
+      }
+    } catch (IOException e) {
+      throw new ProcessException(e);
+    }
+
+    // at the watermark as well, rows can show up later with the same value
+    final String filter;
+    if (watermark != null) {
+      filter = "  FILTER (?" + variable + (exclusive ? " > " : " >= ") + watermark + ")\n";
+    } else if (saved) {
+      // the rows without the variable were sent on by the first run
+      filter = "  FILTER (bound(?" + variable + "))\n";
+    } else {
+      filter = "";
+    }
+    final String query = prefixHeader
+      + "SELECT * WHERE {\n  {\n" + body + "\n  }\n" + filter
+      + "}\nORDER BY ?" + variable;
+
+    final String separator = context.getProperty(SEPARATOR).getValue();
+    final String mode = context.getProperty(OUTPUT_MODE).getValue();
+    final String previous = watermark;
+    // the value of the last row, and the hashes of all rows with that value
+    final String[] last = new String[1];
+    final Set<String> lastRows = new HashSet<>();
+    final boolean[] any = new boolean[1];
+
+    final boolean ran;
+    try {
+      ran = query(context, graphs, false, query, parameters, result -> {
+        final ResultRowWriter writer = new ResultRowWriter(result.getVariables(), selectVars, separator, OUTPUT_NDJSON.getValue().equals(mode), prefixes);
+        final int column = ResultRowWriter.column(result.getVariables(), variable);
+        transferRows(session, null, () -> {
+          while (result.next()) {
+            final Node node = result.getNode(column);
+            if (node == null) {
+              // only the first run has rows without the variable, the later ones filter them out
+              any[0] = true;
+              return writer.format(result);
+            }
+            final String value = FmtUtils.stringForNode(node);
+            if (!value.equals(last[0])) {
+              last[0] = value;
+              lastRows.clear();
             }
-            // For each column after the first
-            else {
-              resultRow += separator + value;
+            final String hash = rowHash(result);
+            lastRows.add(hash);
+            if (value.equals(previous) && sent.contains(hash)) {
+              continue;
             }
-          } else {
-            logger.error("Wrong select!");
+            any[0] = true;
+            return writer.format(result);
           }
-        }
+          return null;
+        }, mode, context.getProperty(ROWS_PER_FLOWFILE).asInteger());
+      });
+    } catch (SQLTimeoutException e) {
+      return;
+    }
+    if (!ran || !any[0]) {
+      return;
+    }
 
+    // the rows are sent on before the watermark moves past them
+    session.commit();
+    try {
+      final Map<String, String> state = new HashMap<>();
+      state.put(STATE_WATERMARK_QUERY, expanded);
+      // only a first run without a watermark can have no rows with the variable, the state then still tells
+      // that the rows without it were sent on
+      state.put(STATE_WATERMARK, last[0] != null ? last[0] : "");
+      if (lastRows.size() <= MAX_WATERMARK_ROWS) {
+        state.put(STATE_WATERMARK_ROWS, String.join(" ", lastRows));
+      } else {
+        logger.warn("{} rows have watermark {}, too many to remember; rows with that value that show up later are not sent on",
+          new Object[]{lastRows.size(), last[0]});
+        state.put(STATE_WATERMARK_EXCLUSIVE, "true");
+      }
+      stateManager.setState(state, Scope.CLUSTER);
+    } catch (IOException e) {
+      throw new ProcessException(e);
+    }
+  }
 
-        InputStream in = new ByteArrayInputStream(resultRow.getBytes(StandardCharsets.UTF_8));
-        FlowFile newFlowFile;
-        if(oldFlowFile != null) {
-          newFlowFile = session.create(oldFlowFile);
-        } else {
-          newFlowFile = session.create();
+  /**
+   * @return a hash of all values of the current row, to recognize it in a later run
+   */
+  private static String rowHash(QuadStore.Result result) throws SQLException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new ProcessException(e);
+    }
+    for (int column = 1; column <= result.getVariables().size(); column++) {
+      final Node node = result.getNode(column);
+      digest.update((node == null ? "" : FmtUtils.stringForNode(node)).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+  }
+
+  /**
+   * Runs the query once for a batch of flowfiles, with the bindings of all of them in a VALUES block, and
+   * sends every result row on as a child of the flowfile whose bindings it matched.
+   */
+  private void onTriggerBatch(final ProcessContext context, final ProcessSession session, final List<String> selectVars, int batchSize) {
+
+    // the graphs can come from the flowfile, so the flowfiles are batched per set of graphs
+    final Map<String, Graphs> graphsOf = new LinkedHashMap<>();
+    final Map<String, List<FlowFile>> batches = new LinkedHashMap<>();
+    for (final FlowFile flowFile : session.get(batchSize)) {
+      try {
+        // only to check that the flowfile has all attributes
+        this.template.parameters(flowFile.getAttributes());
+        final Graphs graphs = graphs(context, flowFile);
+        final String key = graphs.key(false);
+        graphsOf.putIfAbsent(key, graphs);
+        batches.computeIfAbsent(key, k -> new ArrayList<>()).add(flowFile);
+      } catch (IllegalArgumentException e) {
+        logger.error(e.getMessage());
+        session.transfer(flowFile, ORIGINAL);
+      }
+    }
+
+    for (final Map.Entry<String, List<FlowFile>> batch : batches.entrySet()) {
+      onTriggerBatch(context, session, selectVars, graphsOf.get(batch.getKey()), batch.getValue());
+    }
+  }
+
+  /**
+   * Runs one query for the flowfiles of a batch that read from the same graphs.
+   */
+  private void onTriggerBatch(final ProcessContext context, final ProcessSession session, final List<String> selectVars,
+                              final Graphs graphs, final List<FlowFile> batch) {
+
+    final List<Map<String, String>> bindings = new ArrayList<>();
+    for (final FlowFile flowFile : batch) {
+      bindings.add(flowFile.getAttributes());
+    }
+
+    final QueryTemplate template = this.template;
+    final String query = prefixHeader + template.batch(bindings, BATCH_INDEX);
+    final String separator = context.getProperty(SEPARATOR).getValue();
+    final String mode = context.getProperty(OUTPUT_MODE).getValue();
+
+    try {
+      query(context, graphs, false, query, null, result -> {
+        final ResultRowWriter rows = new ResultRowWriter(result.getVariables(), selectVars, separator, OUTPUT_NDJSON.getValue().equals(mode), prefixes);
+        final int indexColumn = ResultRowWriter.column(result.getVariables(), BATCH_INDEX);
+
+        if (OUTPUT_ROW_PER_FLOWFILE.getValue().equals(mode)) {
+          while (result.next()) {
+            final String row = rows.format(result);
+
+            FlowFile newFlowFile = session.create(batch.get(Integer.parseInt(result.getString(indexColumn))));
+            newFlowFile = session.write(newFlowFile, out -> out.write(row.getBytes(StandardCharsets.UTF_8)));
+            session.transfer(newFlowFile, RESULT_ROW);
+          }
+          return;
         }
 
+        // the rows of the flowfiles come mixed, so they are collected per flowfile; batches are meant for small results
+        final StringWriter[] collected = new StringWriter[batch.size()];
+        final int[] counts = new int[batch.size()];
+        while (result.next()) {
+          final int index = Integer.parseInt(result.getString(indexColumn));
+          if (collected[index] == null) {
+            collected[index] = new StringWriter();
+          }
+          try {
+            rows.write(result, collected[index]);
+          } catch (IOException e) {
+            // a StringWriter does not fail
+            throw new IllegalStateException(e);
+          }
+          counts[index]++;
+        }
 
-        newFlowFile = session.importFrom(in, newFlowFile);
-        session.transfer(newFlowFile, RESULT_ROW);
+        for (int i = 0; i < batch.size(); i++) {
+          if (collected[i] == null) {
+            continue;
+          }
+          final byte[] content = collected[i].toString().getBytes(StandardCharsets.UTF_8);
+          FlowFile newFlowFile = session.create(batch.get(i));
+          newFlowFile = session.write(newFlowFile, out -> out.write(content));
 
+          final Map<String, String> attributes = new HashMap<>();
+          attributes.put("record.count", String.valueOf(counts[i]));
+          attributes.put(CoreAttributes.MIME_TYPE.key(), mimeType(mode));
+          newFlowFile = session.putAllAttributes(newFlowFile, attributes);
+          session.transfer(newFlowFile, RESULT_ROW);
+        }
+      });
+    } catch (SQLTimeoutException e) {
+      for (final FlowFile flowFile : batch) {
+        session.transfer(session.penalize(flowFile), TIMEOUT);
       }
-    } catch (SQLException e) {
-      logger.error(query);
-      logger.error(e.getMessage(), e);
+      return;
     }
-    finally {
 
+    session.transfer(batch, ORIGINAL);
+  }
+
+  private interface ResultHandler {
+    void onResult(QuadStore.Result result) throws SQLException;
+  }
+
+  /**
+   * Runs the query on a pooled connection and hands the result to the handler. Query failures are logged. When
+   * the connection breaks before the query returned, the query runs once more on a new connection.
+   * @param construct true for a CONSTRUCT or DESCRIBE query, whose result is rows of triples
+   * @param parameters the parameters of a prepared statement, or null to run the query as it is
+   * @return false if the query failed
+   * @throws SQLTimeoutException if the query ran longer than the query timeout
+   * @throws ProcessException if the query was cancelled because the processor stops
+   */
+  private boolean query(ProcessContext context, Graphs graphs, boolean construct, String query, List<String> parameters,
+                        ResultHandler handler) throws SQLTimeoutException {
+    return query(context, graphs, construct, query, parameters, null, handler);
+  }
+
+  /**
+   * @param sharded the sharded query this query is a shard of, or null
+   */
+  private boolean query(ProcessContext context, Graphs graphs, boolean construct, String query, List<String> parameters,
+                        ShardedQuery sharded, ResultHandler handler) throws SQLTimeoutException {
+
+    // a read is run once more when the connection failed before it returned anything, the pool then ejects the server
+    // of that connection, so with read replicas the second attempt goes to another server
+    boolean retry = true;
+    while (true) {
+      // Borrow a connection from the store, setting one up for every flowfile is slow
+      final QuadStore.Connection connection;
       try {
-        if(stmt != null) {
-          stmt.cancel();
-          stmt.close();
+        connection = store.borrow(maxWaitMillis, TimeUnit.MILLISECONDS);
+      } catch (SQLException e) {
+        throw new ProcessException(e);
+      }
+      final String address = connection.getAddress();
+      running.add(connection);
+      SQLException failure = null;
+      boolean executed = false;
+      boolean connectionFailed = false;
+
+      try {
+        if (sharded != null && !sharded.started(connection)) {
+          throw new SQLException("Shard cancelled");
         }
+        final int fetchSize = context.getProperty(FETCH_SIZE).asInteger();
+        final long timeoutMillis = context.getProperty(QUERY_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        final QuadStore.Result result = construct
+          ? connection.construct(query, graphs.defaults, graphs.named, parameters, fetchSize, timeoutMillis)
+          : connection.select(query, graphs.defaults, graphs.named, parameters, fetchSize, timeoutMillis);
+        executed = true;
+
+        handler.onResult(result);
       } catch (SQLException e) {
-        logger.error(e.getMessage(), e);
+        failure = e;
+        if (stopping) {
+          // the session is rolled back, so the flowfile is queried again after a restart
+          throw new ProcessException("Query cancelled because the processor stops", e);
+        }
+        if (sharded != null && sharded.isCancelled()) {
+          // another shard failed, and that failure is reported
+          return false;
+        }
+        if (e instanceof SQLTimeoutException) {
+          logger.warn("Query timed out: {}", new Object[]{query});
+          throw (SQLTimeoutException) e;
+        }
+      }
+      finally {
+        running.remove(connection);
+        if (sharded != null) {
+          sharded.ended(connection);
+        }
+
+        // Hand the connection back for the next flowfile, a connection that failed is not reused
+        if (failure != null) {
+          connectionFailed = connection.invalidate();
+        } else {
+          connection.release();
+        }
       }
+
+      if (failure == null) {
+        return true;
+      }
+      if (retry && !executed && connectionFailed) {
+        logger.warn("Query failed on {}, running it again: {}", new Object[]{address, failure.getMessage()});
+        retry = false;
+        continue;
+      }
+      logger.error(query);
+      logger.error(failure.getMessage(), failure);
+      return false;
     }
+  }
 
-    // Close this to free connection pool for other processors
-    quadStore.close();
+  private interface RowsHandler {
+    void onRows(Rows rows) throws SQLException;
+  }
 
-    if(oldFlowFile != null) {
-      session.transfer(oldFlowFile, ORIGINAL);
+  /**
+   * Runs the shards of the select query {@code body} at the same time, each on a pooled connection, and
+   * hands their merged rows to the handler. Failures are logged.
+   * @return false if a shard failed
+   * @throws SQLTimeoutException if a shard ran longer than the query timeout
+   */
+  private boolean queryShards(final ProcessContext context, final Graphs graphs, String body, final List<String> parameters, int shards, String variable,
+                              final List<String> selectVars, final String separator, final boolean json, RowsHandler handler) throws SQLTimeoutException {
+
+    final ShardedQuery sharded = new ShardedQuery(shards, SHARD_QUEUE_SIZE);
+    for (int shard = 0; shard < shards; shard++) {
+      final String query = prefixHeader + ShardedQuery.shard(body, variable, shard, shards);
+      shardExecutor.execute(() -> {
+        SQLException failure = null;
+        try {
+          final boolean ran = query(context, graphs, false, query, parameters, sharded, result -> {
+            final ResultRowWriter writer = new ResultRowWriter(result.getVariables(), selectVars, separator, json, prefixes);
+            try {
+              // stops early when the rows are not read anymore
+              while (result.next() && sharded.add(writer.format(result))) {
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new SQLException(e);
+            }
+          });
+          if (!ran) {
+            failure = new SQLException("A shard of the query failed");
+          }
+        } catch (SQLTimeoutException e) {
+          failure = e;
+        } catch (RuntimeException e) {
+          failure = new SQLException(e);
+        }
+        try {
+          sharded.end(failure);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+
+    try {
+      handler.onRows(sharded::next);
+      return true;
+    } catch (SQLTimeoutException e) {
+      throw e;
+    } catch (SQLException e) {
+      if (stopping) {
+        throw new ProcessException("Query cancelled because the processor stops", e);
+      }
+      logger.error(e.getMessage(), e);
+      return false;
+    } finally {
+      sharded.abandon();
     }
   }
 
+  // sends the rows on, and caches them once they are all read
+  private void transferCollected(ProcessSession session, FlowFile parent, final Rows rows, final QueryResultCache.Collector collector,
+                                 String mode, int rowsPerFlowFile) throws SQLException {
+    transferRows(session, parent, () -> {
+      final String row = rows.next();
+      if (row != null && collector != null) {
+        collector.add(row);
+      }
+      return row;
+    }, mode, rowsPerFlowFile);
 
+    if (collector != null) {
+      collector.commit();
+    }
+  }
+
+  private static boolean isRdf(String mode) {
+    return OUTPUT_NTRIPLES.getValue().equals(mode) || OUTPUT_NQUADS.getValue().equals(mode) || OUTPUT_TURTLE.getValue().equals(mode);
+  }
+
+  private static String mimeType(String mode) {
+    if (OUTPUT_NDJSON.getValue().equals(mode)) {
+      return "application/x-ndjson";
+    }
+    if (OUTPUT_NTRIPLES.getValue().equals(mode)) {
+      return "application/n-triples";
+    }
+    if (OUTPUT_NQUADS.getValue().equals(mode)) {
+      return "application/n-quads";
+    }
+    if (OUTPUT_TURTLE.getValue().equals(mode)) {
+      return "text/turtle";
+    }
+    return "text/plain";
+  }
+
+  private interface Rows {
+    /**
+     * @return the next formatted row, or null after the last one
+     */
+    String next() throws SQLException;
+  }
+
+  private void transferRows(ProcessSession session, FlowFile parent, Rows rows, String mode, int rowsPerFlowFile) throws SQLException {
+    if (OUTPUT_ROW_PER_FLOWFILE.getValue().equals(mode)) {
+      String row;
+      while ((row = rows.next()) != null) {
+        final byte[] content = row.getBytes(StandardCharsets.UTF_8);
+
+        FlowFile newFlowFile = parent != null ? session.create(parent) : session.create();
+        newFlowFile = session.write(newFlowFile, out -> out.write(content));
+        session.transfer(newFlowFile, RESULT_ROW);
+      }
+    } else {
+      transferStreamed(session, parent, rows, rowsPerFlowFile, mimeType(mode), OUTPUT_TURTLE.getValue().equals(mode) ? turtleHeader : "");
+    }
+  }
+
+  /**
+   * Streams the rows into flowfiles of at most {@code rowsPerFlowFile} rows (0 is unlimited), without
+   * keeping more than a single row in memory. Every flowfile starts with the header.
+   */
+  private void transferStreamed(ProcessSession session, FlowFile parent, final Rows rows, final int rowsPerFlowFile, String mimeType,
+                                final String header) throws SQLException {
+
+    String first = rows.next();
+    while (first != null) {
+      final String start = first;
+      final int[] written = new int[1];
+      final String[] next = new String[1];
+      final SQLException[] failure = new SQLException[1];
+
+      FlowFile newFlowFile = parent != null ? session.create(parent) : session.create();
+      newFlowFile = session.write(newFlowFile, out -> {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(header);
+        try {
+          String row = start;
+          do {
+            writer.write(row);
+            writer.write('\n');
+            written[0]++;
+            row = rows.next();
+          } while (row != null && (rowsPerFlowFile == 0 || written[0] < rowsPerFlowFile));
+          next[0] = row;
+        } catch (SQLException e) {
+          failure[0] = e;
+        }
+        writer.flush();
+      });
+
+      if (failure[0] != null) {
+        session.remove(newFlowFile);
+        throw failure[0];
+      }
+
+      final Map<String, String> attributes = new HashMap<>();
+      attributes.put("record.count", String.valueOf(written[0]));
+      attributes.put(CoreAttributes.MIME_TYPE.key(), mimeType);
+      newFlowFile = session.putAllAttributes(newFlowFile, attributes);
+      session.transfer(newFlowFile, RESULT_ROW);
+      first = next[0];
+    }
+  }
 }
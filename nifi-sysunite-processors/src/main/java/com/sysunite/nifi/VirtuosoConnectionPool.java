@@ -0,0 +1,184 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+import virtuoso.jena.driver.VirtuosoPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"sparql, virtuoso, connection, pool"})
+@CapabilityDescription("A bounded pool of Virtuoso connections that is opened when the service is enabled and closed when it is disabled.")
+public class VirtuosoConnectionPool extends AbstractControllerService implements VirtuosoConnectionService {
+
+  public static final PropertyDescriptor ADDRESS = new PropertyDescriptor
+    .Builder().name("address")
+    .description("The Virtuoso server address 'ip:port', or a comma separated list of the addresses of servers with the same data, "
+      + "i.e. read replicas, to spread the connections over.")
+    .required(true)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor USER = new PropertyDescriptor
+    .Builder().name("user")
+    .description("Virtuoso login user")
+    .required(true)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor PASSWORD = new PropertyDescriptor
+    .Builder().name("password")
+    .description("Virtuoso login password")
+    .required(true)
+    .sensitive(true)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor
+    .Builder().name("max connections")
+    .description("The maximum number of connections that are open at the same time.")
+    .required(true)
+    .defaultValue("8")
+    .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor MAX_WAIT = new PropertyDescriptor
+    .Builder().name("max wait")
+    .description("How long a task waits for a connection when all of them are in use before it fails.")
+    .required(true)
+    .defaultValue("30 secs")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor IDLE_TIMEOUT = new PropertyDescriptor
+    .Builder().name("idle timeout")
+    .description("Connections that have not been used for this long are closed (0 secs keeps them open).")
+    .required(true)
+    .defaultValue("5 mins")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor VALIDATION_QUERY = new PropertyDescriptor
+    .Builder().name("validation query")
+    .description("A query that is run on an idle connection before it is reused, i.e. 'SELECT 1'. "
+      + "Without it, a connection is only checked for being open.")
+    .required(false)
+    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+    .build();
+
+  public static final PropertyDescriptor DEFAULT_GRAPH = new PropertyDescriptor
+    .Builder().name("default graph")
+    .description("The IRI of the graph that queries over these connections read from, unless a processor sets its own graphs. "
+      + "Without it, queries read from all graphs in the store.")
+    .required(false)
+    .addValidator(StandardValidators.URI_VALIDATOR)
+    .build();
+
+  public static final AllowableValue BALANCING_ROUND_ROBIN = new AllowableValue("round robin", "round robin",
+    "Every new connection goes to the next server in turn.");
+
+  public static final AllowableValue BALANCING_LEAST_OUTSTANDING = new AllowableValue("least outstanding", "least outstanding",
+    "Every new connection goes to the server with the fewest connections in use.");
+
+  public static final PropertyDescriptor LOAD_BALANCING = new PropertyDescriptor
+    .Builder().name("load balancing")
+    .description("How connections are spread over the servers, when there are several addresses.")
+    .required(true)
+    .allowableValues(BALANCING_ROUND_ROBIN, BALANCING_LEAST_OUTSTANDING)
+    .defaultValue(BALANCING_ROUND_ROBIN.getValue())
+    .build();
+
+  public static final PropertyDescriptor EJECT_BACKOFF = new PropertyDescriptor
+    .Builder().name("eject backoff")
+    .description("How long a server that cannot be connected to is left out before it is tried again. "
+      + "The time doubles with every failure in a row, up to 32 times this value.")
+    .required(true)
+    .defaultValue("30 secs")
+    .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+    .build();
+
+  private static final List<PropertyDescriptor> DESCRIPTORS;
+
+  static {
+    final List<PropertyDescriptor> descriptors = new ArrayList<>();
+    descriptors.add(ADDRESS);
+    descriptors.add(USER);
+    descriptors.add(PASSWORD);
+    descriptors.add(MAX_CONNECTIONS);
+    descriptors.add(MAX_WAIT);
+    descriptors.add(IDLE_TIMEOUT);
+    descriptors.add(VALIDATION_QUERY);
+    descriptors.add(DEFAULT_GRAPH);
+    descriptors.add(LOAD_BALANCING);
+    descriptors.add(EJECT_BACKOFF);
+    DESCRIPTORS = Collections.unmodifiableList(descriptors);
+  }
+
+  private volatile QuadStore store;
+  private volatile long maxWaitMillis;
+
+  @Override
+  protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return DESCRIPTORS;
+  }
+
+  @OnEnabled
+  public void onEnabled(final ConfigurationContext context) {
+    maxWaitMillis = context.getProperty(MAX_WAIT).asTimePeriod(TimeUnit.MILLISECONDS);
+    store = new VirtuosoQuadStore(new VirtuosoPool(
+      addresses(context.getProperty(ADDRESS).getValue()),
+      context.getProperty(USER).getValue(),
+      context.getProperty(PASSWORD).getValue(),
+      context.getProperty(MAX_CONNECTIONS).asInteger(),
+      context.getProperty(IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+      context.getProperty(VALIDATION_QUERY).getValue(),
+      context.getProperty(DEFAULT_GRAPH).getValue(),
+      balancing(context.getProperty(LOAD_BALANCING).getValue()),
+      context.getProperty(EJECT_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS)));
+  }
+
+  /**
+   * @return the JDBC addresses of a comma separated list of 'ip:port' addresses
+   */
+  static List<String> addresses(String value) {
+    final List<String> addresses = new ArrayList<>();
+    for (final String address : value.split(",")) {
+      if (!address.trim().isEmpty()) {
+        addresses.add("jdbc:virtuoso://" + address.trim());
+      }
+    }
+    return addresses;
+  }
+
+  static VirtuosoPool.Balancing balancing(String value) {
+    return BALANCING_LEAST_OUTSTANDING.getValue().equals(value)
+      ? VirtuosoPool.Balancing.LEAST_OUTSTANDING : VirtuosoPool.Balancing.ROUND_ROBIN;
+  }
+
+  @OnDisabled
+  public void onDisabled() {
+    if (store != null) {
+      store.close();
+      store = null;
+    }
+  }
+
+  @Override
+  public QuadStore getStore() {
+    return store;
+  }
+
+  @Override
+  public long getMaxWait(TimeUnit unit) {
+    return unit.convert(maxWaitMillis, TimeUnit.MILLISECONDS);
+  }
+}
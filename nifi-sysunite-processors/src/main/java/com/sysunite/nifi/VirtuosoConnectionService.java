@@ -0,0 +1,22 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.util.concurrent.TimeUnit;
+
+@Tags({"sparql, virtuoso, connection, pool"})
+@CapabilityDescription("Provides pooled connections to a Virtuoso server, or to another quad store, shared by the processors that use this service.")
+public interface VirtuosoConnectionService extends ControllerService {
+
+  /**
+   * @return the store of the service; connections borrowed from it go back to it, the store itself is closed by the service
+   */
+  QuadStore getStore();
+
+  /**
+   * @return how long to wait for a connection when all of them are borrowed
+   */
+  long getMaxWait(TimeUnit unit);
+}
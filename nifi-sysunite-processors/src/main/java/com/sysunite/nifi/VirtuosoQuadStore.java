@@ -0,0 +1,223 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.graph.Node;
+import virtuoso.jena.driver.ISQLChannel;
+import virtuoso.jena.driver.VirtGraph;
+import virtuoso.jena.driver.VirtuosoPool;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Virtuoso server, over the JDBC connections of a {@link VirtuosoPool}. Queries are sent as SPARQL over SQL,
+ * with the graphs as Virtuoso pragmas, so Virtuoso can use its graph indexes instead of scanning all graphs.
+ */
+final class VirtuosoQuadStore implements QuadStore {
+
+  // the SQL state of a query that ran longer than its timeout
+  private static final String TIMED_OUT = "S1T00";
+
+  private final VirtuosoPool pool;
+
+  VirtuosoQuadStore(VirtuosoPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public QuadStore.Connection borrow(long timeout, TimeUnit unit) throws SQLException {
+    return new Connection(pool.borrow(timeout, unit));
+  }
+
+  @Override
+  public String getDefaultGraph() {
+    return pool.getDefaultGraph();
+  }
+
+  @Override
+  public void close() {
+    pool.close();
+  }
+
+  private final class Connection implements QuadStore.Connection {
+
+    private final VirtGraph virtGraph;
+    private volatile Statement stmt;
+
+    private Connection(VirtGraph virtGraph) {
+      this.virtGraph = virtGraph;
+    }
+
+    @Override
+    public String getAddress() {
+      return pool.getAddress(virtGraph);
+    }
+
+    @Override
+    public Result select(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                         int fetchSize, long timeoutMillis) throws SQLException {
+      return execute(header(false, defaultGraphs, namedGraphs) + query, parameters, fetchSize, timeoutMillis);
+    }
+
+    @Override
+    public Result construct(String query, List<String> defaultGraphs, List<String> namedGraphs, List<String> parameters,
+                            int fetchSize, long timeoutMillis) throws SQLException {
+      return execute(header(true, defaultGraphs, namedGraphs) + query, parameters, fetchSize, timeoutMillis);
+    }
+
+    private Result execute(String query, List<String> parameters, int fetchSize, long timeoutMillis) throws SQLException {
+      closeStatement();
+      try {
+        final ResultSet result;
+        if (parameters != null) {
+          final PreparedStatement prepared = ISQLChannel.prepareQuery(virtGraph, query);
+          stmt = prepared;
+          for (int i = 0; i < parameters.size(); i++) {
+            prepared.setString(i + 1, parameters.get(i));
+          }
+          configure(prepared, fetchSize, timeoutMillis);
+          result = prepared.executeQuery();
+        } else {
+          stmt = ISQLChannel.executeQuery(virtGraph, query);
+          configure(stmt, fetchSize, timeoutMillis);
+          result = stmt.executeQuery(query);
+        }
+        return new Rows(result);
+      } catch (SQLException e) {
+        throw timeout(e);
+      }
+    }
+
+    @Override
+    public void update(List<String> updates, int batchSize, int retries) {
+      final List<String> statements = new ArrayList<>(updates.size());
+      for (final String update : updates) {
+        statements.add("sparql " + update);
+      }
+      ISQLChannel.sendTransaction(virtGraph, statements, batchSize, retries);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+      final Statement stmt = this.stmt;
+      if (stmt != null) {
+        stmt.cancel();
+      }
+    }
+
+    @Override
+    public void release() {
+      // a statement that cannot be closed leaves the connection in an unknown state
+      if (closeStatement()) {
+        pool.release(virtGraph);
+      } else {
+        pool.invalidate(virtGraph);
+      }
+    }
+
+    @Override
+    public boolean invalidate() {
+      closeStatement();
+      return pool.invalidate(virtGraph);
+    }
+
+    /**
+     * @return false if the statement failed to close
+     */
+    private boolean closeStatement() {
+      final Statement stmt = this.stmt;
+      this.stmt = null;
+      if (stmt == null) {
+        return true;
+      }
+      try {
+        stmt.cancel();
+        stmt.close();
+        return true;
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+  }
+
+  private static final class Rows implements Result {
+
+    private final ResultSet result;
+
+    private Rows(ResultSet result) {
+      this.result = result;
+    }
+
+    @Override
+    public List<String> getVariables() throws SQLException {
+      final ResultSetMetaData metaData = result.getMetaData();
+      final List<String> variables = new ArrayList<>();
+      for (int column = 1; column <= metaData.getColumnCount(); column++) {
+        variables.add(metaData.getColumnLabel(column));
+      }
+      return variables;
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+      try {
+        return result.next();
+      } catch (SQLException e) {
+        // a timeout can also hit while the rows are fetched
+        throw timeout(e);
+      }
+    }
+
+    @Override
+    public String getString(int column) throws SQLException {
+      return result.getString(column);
+    }
+
+    @Override
+    public Node getNode(int column) throws SQLException {
+      final Object value = result.getObject(column);
+      return value != null ? VirtGraph.Object2Node(value) : null;
+    }
+  }
+
+  /**
+   * @return the start of a query: the graphs it reads from
+   * @param construct true for a CONSTRUCT or DESCRIBE query, which Virtuoso then returns as rows of triples
+   */
+  private static String header(boolean construct, List<String> defaultGraphs, List<String> namedGraphs) {
+    final StringBuilder header = new StringBuilder("sparql\n");
+    if (construct) {
+      header.append("define output:format '_JAVA_'\n");
+    }
+    for (final String graph : defaultGraphs) {
+      header.append("define input:default-graph-uri <").append(graph).append(">\n");
+    }
+    for (final String graph : namedGraphs) {
+      header.append("define input:named-graph-uri <").append(graph).append(">\n");
+    }
+    return header.toString();
+  }
+
+  private static void configure(Statement stmt, int fetchSize, long timeoutMillis) throws SQLException {
+    if (fetchSize > 0) {
+      stmt.setFetchSize(fetchSize);
+    }
+    if (timeoutMillis > 0) {
+      // in whole seconds, rounded up
+      stmt.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (timeoutMillis + 999) / 1000));
+    }
+  }
+
+  private static SQLException timeout(SQLException e) {
+    if (e instanceof SQLTimeoutException || !TIMED_OUT.equals(e.getSQLState())) {
+      return e;
+    }
+    return new SQLTimeoutException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+  }
+}
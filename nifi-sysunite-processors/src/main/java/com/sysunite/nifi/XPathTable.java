@@ -0,0 +1,90 @@
+package com.sysunite.nifi;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The dynamic property XPaths of one schedule that are evaluated against a DOM. XPathExpression is not
+ * thread safe, so each thread compiles the table once and keeps using its own copy until the processor
+ * is scheduled again.
+ */
+final class XPathTable {
+
+  interface Results {
+
+    /**
+     * Called with the string value of every XPath that selects a value.
+     */
+    void onValue(Relationship relationship, String value) throws IOException;
+
+    /**
+     * Called for every node selected by the other XPaths, in document order per relationship.
+     */
+    void onNode(Relationship relationship, Node node) throws IOException;
+  }
+
+  final Map<Relationship, String> queries;
+  // the relationships whose XPath selects a string value instead of nodes
+  final Set<Relationship> values;
+  private final ThreadLocal<Map<Relationship, XPathExpression>> compiled = ThreadLocal.withInitial(this::compile);
+
+  XPathTable(Map<Relationship, String> queries, Set<Relationship> values) {
+    this.queries = Collections.unmodifiableMap(new LinkedHashMap<>(queries));
+    this.values = Collections.unmodifiableSet(new HashSet<>(values));
+  }
+
+  boolean isEmpty() {
+    return queries.isEmpty();
+  }
+
+  void evaluate(Document document, Results results) throws IOException {
+
+    // loop through the relations and get each value (xpath)
+    final Map<Relationship, XPathExpression> expressions = compiled.get();
+
+    for (final Relationship rel : queries.keySet()) {
+
+      final XPathExpression expression = expressions.get(rel);
+
+      try {
+        // if we want an attribute of a node - Route On Attribute (ori FileContent not changed)
+        if (values.contains(rel)) {
+          results.onValue(rel, expression.evaluate(document));
+          continue;
+        }
+
+        //extract all nodes and transfer them to the appropriate relation - Route On Content (ori FileContent changed)
+        final NodeList nodeList = (NodeList) expression.evaluate(document, XPathConstants.NODESET);
+        for (int i = 0; i < nodeList.getLength(); i++) {
+          results.onNode(rel, nodeList.item(i));
+        }
+      } catch (XPathExpressionException e) {
+        throw new ProcessException(e);
+      }
+    }
+  }
+
+  private Map<Relationship, XPathExpression> compile() {
+    final XPath xPath = XPathFactory.newInstance().newXPath();
+    final Map<Relationship, XPathExpression> expressions = new HashMap<>();
+    for (final Map.Entry<Relationship, String> entry : queries.entrySet()) {
+      try {
+        expressions.put(entry.getKey(), xPath.compile(entry.getValue()));
+      } catch (XPathExpressionException e) {
+        throw new ProcessException(e);
+      }
+    }
+    return Collections.unmodifiableMap(expressions);
+  }
+}
@@ -0,0 +1,335 @@
+package com.sysunite.nifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal, non validating XML tokenizer that works directly on the bytes of a document and
+ * reports where every element starts and ends. Markup characters are single bytes in UTF-8 and
+ * the other ASCII compatible encodings, so the reported offsets can be used to address the
+ * original content without decoding or copying it. Only nesting of start and end tags is checked.
+ * When asked for, the attributes of each start tag are decoded and can be looked up with
+ * {@link #attribute(String)} while the handler is notified of the start tag.
+ */
+final class XmlByteScanner {
+
+  interface Handler {
+
+    /**
+     * @param offset position of the '&lt;' of the start tag
+     */
+    void startElement(String qName, long offset) throws IOException;
+
+    /**
+     * @param offset position of the '&lt;' of the start tag
+     * @param end position directly after the '&gt;' of the end tag
+     */
+    void endElement(String qName, long offset, long end) throws IOException;
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int index;
+  private int limit;
+  // number of bytes that were in the buffer before the current fill
+  private long consumed;
+
+  private byte[] name = new byte[64];
+
+  private final boolean parseAttributes;
+  private final List<String> attributeNames = new ArrayList<>();
+  private final List<String> attributeValues = new ArrayList<>();
+  private byte[] attributeName = new byte[64];
+  private byte[] attributeValue = new byte[256];
+
+  private boolean stopped;
+
+  XmlByteScanner(InputStream in) {
+    this(in, false);
+  }
+
+  XmlByteScanner(InputStream in, boolean parseAttributes) {
+    this.in = in;
+    this.parseAttributes = parseAttributes;
+  }
+
+  /**
+   * @return the decoded value of an attribute of the start tag that is being reported, or null if it is not
+   * present or attributes are not parsed
+   */
+  String attribute(String qName) {
+    for (int i = 0; i < attributeNames.size(); i++) {
+      if (attributeNames.get(i).equals(qName)) {
+        return attributeValues.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Makes {@link #scan(Handler)} return after the current callback, without reading (or checking) the rest of the input.
+   */
+  void stop() {
+    stopped = true;
+  }
+
+  void scan(Handler handler) throws IOException {
+    checkEncoding();
+
+    final List<String> names = new ArrayList<>();
+    long[] offsets = new long[16];
+
+    int c;
+    while (!stopped && (c = read()) != -1) {
+      if (c != '<') {
+        continue;
+      }
+
+      final long offset = position() - 1;
+      c = read();
+
+      if (c == '!') {
+        skipDeclaration();
+
+      } else if (c == '?') {
+        skipUntil("?>");
+
+      } else if (c == '/') {
+        final String qName = readName(read());
+        skipUntil(">");
+        if (names.isEmpty() || !names.get(names.size() - 1).equals(qName)) {
+          throw new IOException("Unexpected end tag </" + qName + "> at byte " + offset);
+        }
+        names.remove(names.size() - 1);
+        handler.endElement(qName, offsets[names.size()], position());
+
+      } else {
+        final String qName = readName(c);
+        final boolean empty = skipTag() == '/';
+        handler.startElement(qName, offset);
+        if (empty) {
+          handler.endElement(qName, offset, position());
+        } else {
+          if (names.size() == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          }
+          offsets[names.size()] = offset;
+          names.add(qName);
+        }
+      }
+    }
+
+    if (!stopped && !names.isEmpty()) {
+      throw new IOException("Unexpected end of document inside <" + names.get(names.size() - 1) + ">");
+    }
+  }
+
+  private void checkEncoding() throws IOException {
+    while (limit < 2) {
+      int read = in.read(buffer, limit, buffer.length - limit);
+      if (read < 0) {
+        return;
+      }
+      limit += read;
+    }
+    // UTF-16 and UTF-32 either start with a byte order mark or have a zero byte around the first '<'
+    int first = buffer[0] & 0xff;
+    int second = buffer[1] & 0xff;
+    if ((first == 0xfe && second == 0xff) || (first == 0xff && second == 0xfe) || first == 0 || second == 0) {
+      throw new IOException("Content is not in an ASCII compatible encoding");
+    }
+  }
+
+  private int read() throws IOException {
+    while (index == limit) {
+      consumed += limit;
+      index = 0;
+      limit = in.read(buffer, 0, buffer.length);
+      if (limit < 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[index++] & 0xff;
+  }
+
+  /**
+   * @return the position of the next byte that will be read; while a start tag is reported, the position
+   * right after its '&gt;'
+   */
+  long position() {
+    return consumed + index;
+  }
+
+  private String readName(int c) throws IOException {
+    int length = 0;
+    while (c != -1 && c != '>' && c != '/' && !isWhitespace(c)) {
+      if (length == name.length) {
+        name = Arrays.copyOf(name, name.length * 2);
+      }
+      name[length++] = (byte) c;
+      c = read();
+    }
+    if (length == 0) {
+      throw new IOException("Missing element name at byte " + position());
+    }
+    // give the terminating byte back, the caller still has to see the end of the tag
+    if (c != -1) {
+      index--;
+    }
+    return new String(name, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Skips (or parses) the attributes of a start tag up to and including its '&gt;'.
+   * @return the byte right before the '&gt;'
+   */
+  private int skipTag() throws IOException {
+    attributeNames.clear();
+    attributeValues.clear();
+    int nameLength = 0;
+    int previous = 0;
+    int c;
+    while ((c = read()) != -1) {
+      if (c == '"' || c == '\'') {
+        final int quote = c;
+        int valueLength = 0;
+        while ((c = read()) != quote) {
+          if (c == -1) {
+            throw new IOException("Unexpected end of document inside an attribute value");
+          }
+          if (parseAttributes) {
+            if (valueLength == attributeValue.length) {
+              attributeValue = Arrays.copyOf(attributeValue, attributeValue.length * 2);
+            }
+            attributeValue[valueLength++] = (byte) c;
+          }
+        }
+        if (parseAttributes) {
+          attributeNames.add(new String(attributeName, 0, nameLength, StandardCharsets.UTF_8));
+          attributeValues.add(decode(new String(attributeValue, 0, valueLength, StandardCharsets.UTF_8)));
+          nameLength = 0;
+        }
+        previous = quote;
+        continue;
+      }
+      if (c == '>') {
+        return previous;
+      }
+      if (parseAttributes && c != '=' && c != '/' && !isWhitespace(c)) {
+        if (nameLength == attributeName.length) {
+          attributeName = Arrays.copyOf(attributeName, attributeName.length * 2);
+        }
+        attributeName[nameLength++] = (byte) c;
+      }
+      previous = c;
+    }
+    throw new IOException("Unexpected end of document inside a start tag");
+  }
+
+  // attribute value normalization and the predefined and numeric character references
+  private static String decode(String raw) throws IOException {
+    if (raw.indexOf('&') < 0 && raw.indexOf('\t') < 0 && raw.indexOf('\n') < 0 && raw.indexOf('\r') < 0) {
+      return raw;
+    }
+    final StringBuilder value = new StringBuilder(raw.length());
+    for (int i = 0; i < raw.length(); i++) {
+      final char c = raw.charAt(i);
+      if (c == '\t' || c == '\n' || c == '\r') {
+        value.append(' ');
+      } else if (c != '&') {
+        value.append(c);
+      } else {
+        final int end = raw.indexOf(';', i);
+        if (end < 0) {
+          throw new IOException("Unterminated reference in attribute value '" + raw + "'");
+        }
+        final String reference = raw.substring(i + 1, end);
+        if (reference.startsWith("#")) {
+          try {
+            value.appendCodePoint(reference.startsWith("#x")
+                ? Integer.parseInt(reference.substring(2), 16)
+                : Integer.parseInt(reference.substring(1)));
+          } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid character reference &" + reference + "; in attribute value", e);
+          }
+        } else if ("lt".equals(reference)) {
+          value.append('<');
+        } else if ("gt".equals(reference)) {
+          value.append('>');
+        } else if ("amp".equals(reference)) {
+          value.append('&');
+        } else if ("quot".equals(reference)) {
+          value.append('"');
+        } else if ("apos".equals(reference)) {
+          value.append('\'');
+        } else {
+          throw new IOException("Unsupported entity reference &" + reference + "; in attribute value");
+        }
+        i = end;
+      }
+    }
+    return value.toString();
+  }
+
+  // comments, CDATA sections and the document type declaration
+  private void skipDeclaration() throws IOException {
+    int c = read();
+    if (c == '-') {
+      skipUntil("-->");
+      return;
+    }
+    if (c == '[') {
+      skipUntil("]]>");
+      return;
+    }
+
+    int quote = 0;
+    int depth = 0;
+    while (c != -1) {
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '[') {
+        depth++;
+      } else if (c == ']') {
+        depth--;
+      } else if (c == '>' && depth == 0) {
+        return;
+      }
+      c = read();
+    }
+    throw new IOException("Unexpected end of document inside a declaration");
+  }
+
+  private void skipUntil(String terminator) throws IOException {
+    final int last = terminator.length() - 1;
+    int matched = 0;
+    int c;
+    while ((c = read()) != -1) {
+      if (c == terminator.charAt(matched)) {
+        if (matched == last) {
+          return;
+        }
+        matched++;
+      } else {
+        // terminators only repeat their first character ('--', ']]'), so a mismatch at most restarts the match
+        matched = c == terminator.charAt(0) ? (matched > 0 && terminator.charAt(matched - 1) == c ? matched : 1) : 0;
+      }
+    }
+    throw new IOException("Unexpected end of document, expected '" + terminator + "'");
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+}
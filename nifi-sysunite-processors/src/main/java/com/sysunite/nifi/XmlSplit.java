@@ -26,9 +26,12 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.ConfigurableComponent;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
@@ -36,33 +39,33 @@ import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
+@SupportsBatching
 @Tags({"xmlsplit, custom"})
 @CapabilityDescription("Splits one or more nodes from a xml-file to a custom defined relationship")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="", description="")})
-@WritesAttributes({@WritesAttribute(attribute="", description="")})
+@WritesAttributes({
+    @WritesAttribute(attribute="fragment.identifier", description="All node splits of one relationship that are produced from the same incoming FlowFile share the same identifier"),
+    @WritesAttribute(attribute="fragment.index", description="The position of a node split within the splits of its relationship"),
+    @WritesAttribute(attribute="fragment.count", description="The number of node splits of the relationship produced from the incoming FlowFile"),
+    @WritesAttribute(attribute="segment.original.filename", description="The filename of the incoming FlowFile")})
 @DynamicProperty(name = "Relationship Name", value = "Xpath node name", supportsExpressionLanguage = false, description = "")
 public class XmlSplit extends AbstractProcessor implements ConfigurableComponent {
 
@@ -71,9 +74,131 @@ public class XmlSplit extends AbstractProcessor implements ConfigurableComponent
       .description("Input for this processor will be transfered to this relationship.")
       .build();
 
+  public static final AllowableValue MODE_DOM = new AllowableValue("DOM", "DOM",
+      "Parses the complete document into memory and evaluates every XPath against it. Supports any XPath expression.");
+
+  public static final AllowableValue MODE_STREAMING = new AllowableValue("Streaming", "Streaming",
+      "Reads the document with StAX and emits each matching node as soon as its end tag is read, so memory is bounded " +
+      "by the largest matched node. All relationships are matched in a single pass. Absolute paths of child ('/') and descendant ('//') " +
+      "steps on element names or '*' with attribute predicates ([@id], [@id='x']), optionally ending in an attribute step (/@id), " +
+      "are streamed; other expressions are evaluated against a DOM of the document afterwards.");
+
+  public static final AllowableValue MODE_BYTE_RANGE = new AllowableValue("Byte range", "Byte range",
+      "Scans the raw bytes of the document like Streaming mode, but emits each matching node as a byte range of the incoming " +
+      "FlowFile, so the splits share its content and nothing is copied or re-serialized. Splits are the original bytes of the node, " +
+      "namespaces declared on its ancestors are not repeated. Requires an ASCII compatible encoding such as UTF-8.");
+
+  public static final AllowableValue MODE_PARALLEL = new AllowableValue("Parallel", "Parallel",
+      "For documents that are a long list of records below the root element. The raw bytes are cut into chunks of whole records, " +
+      "which are parsed and evaluated like in DOM mode on several threads; results are emitted in document order. Every chunk is " +
+      "evaluated on its own, so XPaths that relate records to each other (positions, counts, siblings) only see the records of one chunk. " +
+      "Requires an ASCII compatible encoding such as UTF-8.");
+
+  public static final PropertyDescriptor SPLIT_MODE = new PropertyDescriptor
+      .Builder().name("Split mode")
+      .description("How the incoming document is read while looking for matching nodes.")
+      .required(true)
+      .allowableValues(MODE_DOM, MODE_STREAMING, MODE_BYTE_RANGE, MODE_PARALLEL)
+      .defaultValue(MODE_DOM.getValue())
+      .build();
+
+  public static final AllowableValue ATTRIBUTES_PER_RELATIONSHIP = new AllowableValue("Per relationship", "Per relationship",
+      "Every XPath that selects a value sends a copy of the incoming FlowFile to its relationship, with the value in an attribute named after the relationship.");
+
+  public static final AllowableValue ATTRIBUTES_ON_ORIGINAL = new AllowableValue("On original", "On original",
+      "All selected values are written at once as attributes of the FlowFile that is sent to 'original', named after their relationships. " +
+      "No copies are made and the relationships of these XPaths receive nothing, so they can be auto-terminated.");
+
+  public static final PropertyDescriptor ATTRIBUTE_EXTRACTION = new PropertyDescriptor
+      .Builder().name("Attribute extraction")
+      .description("Where the values selected by XPaths on an attribute (i.e. '/Node/@id') are written to.")
+      .required(true)
+      .allowableValues(ATTRIBUTES_PER_RELATIONSHIP, ATTRIBUTES_ON_ORIGINAL)
+      .defaultValue(ATTRIBUTES_PER_RELATIONSHIP.getValue())
+      .build();
+
+  public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+      .Builder().name("Batch size")
+      .description("The maximum number of incoming FlowFiles that are split in one session. Larger batches take the per-session " +
+          "overhead off streams of many small documents; if one of them can not be split, the whole batch is rolled back.")
+      .required(true)
+      .defaultValue("1")
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor CHUNK_SIZE = new PropertyDescriptor
+      .Builder().name("Chunk size")
+      .description("In Parallel mode, the size from which a chunk of records is handed to a thread.")
+      .required(true)
+      .defaultValue("1 MB")
+      .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor PARALLELISM = new PropertyDescriptor
+      .Builder().name("Parallel threads")
+      .description("In Parallel mode, the number of threads that parse chunks, shared by all concurrent tasks. 0 uses one per available processor.")
+      .required(true)
+      .defaultValue("0")
+      .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+      .build();
+
+  // DocumentBuilder is not thread safe, so every (task or parallel mode) thread creates its own once
+  static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new ProcessException(e);
+    }
+  });
+
+  public static final AllowableValue FORMAT_XML = new AllowableValue("XML", "XML",
+      "Every node is written as XML, a batch of nodes is wrapped in the batch root element.");
+
+  public static final AllowableValue FORMAT_JSON = new AllowableValue("JSON", "JSON",
+      "Every node is written as a JSON object, a batch of nodes is a JSON array. Attributes become '@name' members, child elements " +
+      "become members named after them (an array when the name repeats) and text becomes a string, or a '#text' member next to others.");
+
+  public static final AllowableValue FORMAT_NDJSON = new AllowableValue("NDJSON", "NDJSON",
+      "Like JSON, but a batch of nodes has one JSON object per line (newline delimited JSON).");
+
+  public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+      .Builder().name("Output format")
+      .description("How matched nodes are written. JSON is written while the node is read, so the fragment is never parsed again. " +
+          "Byte range mode only supports XML.")
+      .required(true)
+      .allowableValues(FORMAT_XML, FORMAT_JSON, FORMAT_NDJSON)
+      .defaultValue(FORMAT_XML.getValue())
+      .build();
+
+  public static final PropertyDescriptor NODES_PER_FLOWFILE = new PropertyDescriptor
+      .Builder().name("Nodes per FlowFile")
+      .description("The maximum number of matched nodes that are written to one output FlowFile. With more than one node, " +
+          "the nodes are wrapped in the batch root element. Byte range mode only supports one node per FlowFile.")
+      .required(true)
+      .defaultValue("1")
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  public static final PropertyDescriptor BATCH_ROOT_ELEMENT = new PropertyDescriptor
+      .Builder().name("Batch root element")
+      .description("Name of the root element that wraps the nodes of an XML output FlowFile when more than one node per FlowFile is configured.")
+      .required(true)
+      .defaultValue("batch")
+      .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("[A-Za-z_][\\w.\\-]*(:[A-Za-z_][\\w.\\-]*)?")))
+      .build();
+
+  // we reconize the monkeytail in xpath i.e. /Node/@id as a value to extract instead of nodes to split
+  private static final Pattern VALUE_XPATH = Pattern.compile("(.*)\u0040(.*)");
+
   private List<PropertyDescriptor> properties;
   private volatile Set<String> dynamicPropertyNames = new HashSet<>();
-  private Map<Relationship, PropertyValue> propertyMap = new HashMap<>();
+  private volatile XPathTable xPathTable = new XPathTable(Collections.<Relationship, String>emptyMap(), Collections.<Relationship>emptySet());
+  private volatile Set<Relationship> valueRelationships = Collections.emptySet();
+  private volatile StreamingXmlSplitter streamingSplitter;
+  private volatile ByteRangeXmlSplitter byteRangeSplitter;
+  private volatile ParallelXmlSplitter parallelSplitter;
+  private volatile OutputFormat outputFormat = OutputFormat.XML;
+  private volatile ForkJoinPool pool;
 
   private AtomicReference<Set<Relationship>> relationships = new AtomicReference<>();
 
@@ -81,6 +206,14 @@ public class XmlSplit extends AbstractProcessor implements ConfigurableComponent
   protected void init(final ProcessorInitializationContext context) {
 
     final List<PropertyDescriptor> properties = new ArrayList<>();
+    properties.add(SPLIT_MODE);
+    properties.add(OUTPUT_FORMAT);
+    properties.add(NODES_PER_FLOWFILE);
+    properties.add(BATCH_ROOT_ELEMENT);
+    properties.add(ATTRIBUTE_EXTRACTION);
+    properties.add(BATCH_SIZE);
+    properties.add(CHUNK_SIZE);
+    properties.add(PARALLELISM);
     this.properties = Collections.unmodifiableList(properties);
     final Set<Relationship> set = new HashSet<>();
     set.add(ORIGINAL);
@@ -140,128 +273,289 @@ public class XmlSplit extends AbstractProcessor implements ConfigurableComponent
   @OnScheduled
   public void onScheduled(final ProcessContext context) {
 
-    final Map<Relationship, PropertyValue> newPropertyMap = new HashMap<>();
+    final Map<Relationship, String> queries = new HashMap<>();
     for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
       if (!descriptor.isDynamic()) {
         continue;
       }
-      newPropertyMap.put(new Relationship.Builder().name(descriptor.getName()).build(), context.getProperty(descriptor));
+      queries.put(new Relationship.Builder().name(descriptor.getName()).build(), context.getProperty(descriptor).getValue());
+    }
+
+    final String mode = context.getProperty(SPLIT_MODE).getValue();
+
+    // in the streaming modes everything inside the streamable subset is evaluated in one pass,
+    // only the remaining expressions still need a DOM
+    final Map<Relationship, String> domQueries = new HashMap<>();
+    final Set<Relationship> domValues = new HashSet<>();
+    final Map<Relationship, StreamingXPath> paths = new HashMap<>();
+    final Set<Relationship> values = new HashSet<>();
+
+    for (final Map.Entry<Relationship, String> entry : queries.entrySet()) {
+      if (MODE_STREAMING.getValue().equals(mode) || MODE_BYTE_RANGE.getValue().equals(mode)) {
+        try {
+          final StreamingXPath path = StreamingXPath.compile(entry.getValue());
+          // as in DOM mode, an XPath with a '@' selects a value; for nodes that is their text, which only the DOM gives
+          if (path.getAttribute() != null || !VALUE_XPATH.matcher(entry.getValue()).matches()) {
+            paths.put(entry.getKey(), path);
+            if (path.getAttribute() != null) {
+              values.add(entry.getKey());
+            }
+            continue;
+          }
+          getLogger().debug("{} selects the text of nodes, it is evaluated against a DOM", new Object[]{entry.getKey().getName()});
+        } catch (IllegalArgumentException e) {
+          getLogger().debug("{} is evaluated against a DOM: {}", new Object[]{entry.getKey().getName(), e.getMessage()});
+        }
+      }
+      domQueries.put(entry.getKey(), entry.getValue());
+      if (VALUE_XPATH.matcher(entry.getValue()).matches()) {
+        domValues.add(entry.getKey());
+      }
+    }
+    values.addAll(domValues);
+
+    final StreamingXPathMatcher matcher = paths.isEmpty() ? null : new StreamingXPathMatcher(paths);
+    final OutputFormat format = OutputFormat.valueOf(context.getProperty(OUTPUT_FORMAT).getValue());
+
+    this.xPathTable = new XPathTable(domQueries, domValues);
+    this.valueRelationships = Collections.unmodifiableSet(values);
+    this.outputFormat = format;
+    this.streamingSplitter = matcher != null && MODE_STREAMING.getValue().equals(mode) ? new StreamingXmlSplitter(matcher, format) : null;
+    this.byteRangeSplitter = matcher != null && MODE_BYTE_RANGE.getValue().equals(mode) ? new ByteRangeXmlSplitter(matcher) : null;
+
+    if (MODE_PARALLEL.getValue().equals(mode)) {
+      final int threads = context.getProperty(PARALLELISM).asInteger();
+      this.pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+      this.parallelSplitter = new ParallelXmlSplitter(xPathTable, pool, context.getProperty(CHUNK_SIZE).asDataSize(DataUnit.B).longValue());
+    } else {
+      this.parallelSplitter = null;
+    }
+  }
+
+  @OnStopped
+  public void onStopped() {
+    if (pool != null) {
+      pool.shutdownNow();
+      pool = null;
+    }
+    parallelSplitter = null;
+  }
+
+  @Override
+  protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+    final List<ValidationResult> results = new ArrayList<>();
+
+    if (MODE_BYTE_RANGE.getValue().equals(context.getProperty(SPLIT_MODE).getValue())
+        && context.getProperty(NODES_PER_FLOWFILE).asInteger() > 1) {
+      results.add(new ValidationResult.Builder()
+          .subject(NODES_PER_FLOWFILE.getName())
+          .input(context.getProperty(NODES_PER_FLOWFILE).getValue())
+          .valid(false)
+          .explanation("byte range splits can not be wrapped in a batch root element without copying them")
+          .build());
+    }
+
+    if (MODE_BYTE_RANGE.getValue().equals(context.getProperty(SPLIT_MODE).getValue())
+        && !FORMAT_XML.getValue().equals(context.getProperty(OUTPUT_FORMAT).getValue())) {
+      results.add(new ValidationResult.Builder()
+          .subject(OUTPUT_FORMAT.getName())
+          .input(context.getProperty(OUTPUT_FORMAT).getValue())
+          .valid(false)
+          .explanation("byte range splits are the original bytes of the node and can not be converted")
+          .build());
+    }
+
+    final XPath xPath = XPathFactory.newInstance().newXPath();
+
+    for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+      if (!entry.getKey().isDynamic() || entry.getValue() == null) {
+        continue;
+      }
+
+      try {
+        xPath.compile(entry.getValue());
+      } catch (XPathExpressionException e) {
+        results.add(new ValidationResult.Builder()
+            .subject(entry.getKey().getName())
+            .input(entry.getValue())
+            .valid(false)
+            .explanation("not a valid XPath expression: " + e.getMessage())
+            .build());
+      }
     }
 
-    this.propertyMap = newPropertyMap;
+    return results;
   }
 
   @Override
   public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
 
-    FlowFile flowFile = session.get();
+    final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
 
-    if (flowFile == null) {
+    if (flowFiles.isEmpty()) {
       return;
     }
 
-    final AtomicReference<Document> theXml = new AtomicReference<>();
+    final int nodesPerFlowFile = context.getProperty(NODES_PER_FLOWFILE).asInteger();
+    final String rootElement = context.getProperty(BATCH_ROOT_ELEMENT).getValue();
+    final boolean onOriginal = ATTRIBUTES_ON_ORIGINAL.getValue().equals(context.getProperty(ATTRIBUTE_EXTRACTION).getValue());
+    final OutputFormat format = outputFormat;
 
-    session.read(flowFile, new InputStreamCallback() {
+    for (final FlowFile flowFile : flowFiles) {
+      split(session, flowFile, new FragmentBatcher(session, flowFile, nodesPerFlowFile, rootElement, format), format, onOriginal);
+    }
+  }
 
-      @Override
-      public void process(InputStream inputStream) throws IOException {
+  private void split(final ProcessSession session, FlowFile flowFile, final FragmentBatcher batcher, final OutputFormat format,
+                     final boolean onOriginal) {
 
-        try {
-          DocumentBuilderFactory builderFactory =
-              DocumentBuilderFactory.newInstance();
-          DocumentBuilder builder = null;
-          try {
-            builder = builderFactory.newDocumentBuilder();
-          } catch (ParserConfigurationException e) {
-            System.out.println("invalid xml file content");
-            e.printStackTrace();
-          }
+    // string value of the value XPaths; for streamed paths, like XPath's string(), the first match in document order
+    final Map<Relationship, String> values = new HashMap<>();
+
+    final StreamingXmlSplitter splitter = streamingSplitter;
+    if (splitter != null) {
+      splitStreaming(splitter, flowFile, session, batcher, values);
+    }
 
-          Document xmlDocument = builder.parse(inputStream);
+    final ByteRangeXmlSplitter rangeSplitter = byteRangeSplitter;
+    if (rangeSplitter != null) {
+      splitByteRanges(rangeSplitter, flowFile, session, batcher, values);
+    }
 
-          theXml.set(xmlDocument);
+    final ParallelXmlSplitter parallel = parallelSplitter;
+    final XPathTable table = xPathTable;
+    if (parallel != null) {
+      splitParallel(parallel, flowFile, session, batcher, format, values);
+    } else if (!table.isEmpty()) {
+      splitDom(table, flowFile, session, batcher, format, values);
+    }
 
+    final Map<String, String> extracted = new HashMap<>();
+    for (final Relationship rel : valueRelationships) {
+      final String value = values.get(rel);
+      extracted.put(rel.getName(), value == null ? "" : value);
+    }
 
-        } catch(SAXException e) {
-          System.out.println("invalid xml file content");
-          e.printStackTrace();
-        }
+    if (onOriginal) {
+      flowFile = session.putAllAttributes(flowFile, extracted);
+    } else {
+      // Route On Attribute: a copy of the original with the value as attribute named after the relationship
+      for (final Relationship rel : valueRelationships) {
+        FlowFile fNew = session.clone(flowFile);
+        fNew = session.putAttribute(fNew, rel.getName(), extracted.get(rel.getName()));
+        session.transfer(fNew, rel);
       }
-    });
+    }
 
+    batcher.finish();
+    session.transfer(flowFile, ORIGINAL);
+  }
 
+  private void splitDom(final XPathTable table, final FlowFile flowFile, final ProcessSession session, final FragmentBatcher batcher,
+                        final OutputFormat format, final Map<Relationship, String> values) {
 
+    final AtomicReference<Document> theXml = new AtomicReference<>();
 
-    // loop through the relations and get each value (xpath)
-    final Map<Relationship, PropertyValue> propMap = propertyMap;
+    session.read(flowFile, new InputStreamCallback() {
 
-    for (final Map.Entry<Relationship, PropertyValue> entry : propMap.entrySet()) {
+      @Override
+      public void process(InputStream inputStream) throws IOException {
 
-      final PropertyValue pv = entry.getValue();
-      String xPathQuery = pv.getValue();
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        builder.reset();
 
-      final Relationship rel = entry.getKey();
-      String relName = rel.getName();
+        try {
+          theXml.set(builder.parse(inputStream));
+        } catch(SAXException e) {
+          throw new ProcessException("invalid xml file content", e);
+        }
+      }
+    });
 
-      if (xPathQuery != null) {
+    try {
+      table.evaluate(theXml.get(), new XPathTable.Results() {
 
+        @Override
+        public void onValue(Relationship relationship, String value) {
+          values.put(relationship, value);
+        }
 
-        XPath xPath =  XPathFactory.newInstance().newXPath();
+        @Override
+        public void onNode(Relationship relationship, Node node) throws IOException {
+          // serialize straight into the content of the new FlowFile (or batch)
+          batcher.add(relationship, out -> format.write(node, batcher.isBatching(), out));
+        }
+      });
+    } catch (IOException e) {
+      throw new ProcessException(e);
+    }
+  }
 
-        // if we want an attribute of a node
-        // we reconize the monkeytail in xpath i.e. /Node/@id - Route On Attribute (ori FileContent not changed)
-        if(xPathQuery.matches("(.*)\u0040(.*)")) {
+  private void splitParallel(final ParallelXmlSplitter splitter, final FlowFile flowFile, final ProcessSession session,
+                             final FragmentBatcher batcher, final OutputFormat format, final Map<Relationship, String> values) {
+    session.read(flowFile, inputStream -> splitter.split(inputStream, format, batcher.isBatching(), new ParallelXmlSplitter.ChunkHandler() {
 
-          String singleStringValue;
-          try {
-            singleStringValue = xPath.compile(xPathQuery).evaluate(theXml.get());
-          } catch (XPathExpressionException e) {
-            throw new ProcessException();
-          }
+      @Override
+      public void onNode(Relationship relationship, byte[] node) throws IOException {
+        batcher.add(relationship, out -> out.write(node));
+      }
 
-          FlowFile fNew = session.clone(flowFile);
-          fNew = session.putAttribute(fNew, relName, singleStringValue);
-          session.transfer(fNew, rel);
+      @Override
+      public void onValue(Relationship relationship, String value) {
+        values.putIfAbsent(relationship, value);
+      }
+    }));
+  }
 
-        } else {
+  private void splitStreaming(final StreamingXmlSplitter splitter, final FlowFile flowFile, final ProcessSession session,
+                              final FragmentBatcher batcher, final Map<Relationship, String> values) {
+    session.read(flowFile, new InputStreamCallback() {
 
-          NodeList nodeList;
-          try {
-            nodeList = (NodeList)xPath.compile(xPathQuery).evaluate(theXml.get(), XPathConstants.NODESET);
-          } catch (XPathExpressionException e) {
-            throw new ProcessException(e);
-          }
+      @Override
+      public void process(InputStream inputStream) throws IOException {
+        try {
+          splitter.split(inputStream, new StreamingXmlSplitter.FragmentHandler() {
 
-          //extract all nodes and transfer them to the appropriate relation - Route On Content (ori FileContent changed)
-          for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-            StringWriter writer = new StringWriter();
-            Transformer transformer = null;
-            try {
-              transformer = TransformerFactory.newInstance().newTransformer();
-              transformer.transform(new DOMSource(node), new StreamResult(writer));
-
-            } catch (TransformerException e) {
-              throw new ProcessException(e);
+            @Override
+            public void onFragment(Relationship relationship, ByteArrayOutputStream fragment) throws IOException {
+              batcher.add(relationship, fragment::writeTo);
             }
 
-
-            String xml = writer.toString();
-
-            FlowFile fNew = session.clone(flowFile);
-            InputStream in = new ByteArrayInputStream(xml.getBytes());
-            fNew = session.importFrom(in, fNew);
-            session.transfer(fNew, rel);
-          }
+            @Override
+            public void onAttribute(Relationship relationship, String value) {
+              values.putIfAbsent(relationship, value);
+            }
+          });
+        } catch (XMLStreamException e) {
+          throw new ProcessException(e);
         }
       }
-    }
+    });
+  }
 
+  private void splitByteRanges(final ByteRangeXmlSplitter splitter, final FlowFile flowFile, final ProcessSession session,
+                               final FragmentBatcher batcher, final Map<Relationship, String> values) {
+    final List<Relationship> relationships = new ArrayList<>();
+    final List<long[]> ranges = new ArrayList<>();
 
+    session.read(flowFile, inputStream -> splitter.split(inputStream, new ByteRangeXmlSplitter.RangeHandler() {
 
+      @Override
+      public void onRange(Relationship relationship, long offset, long size) {
+        relationships.add(relationship);
+        ranges.add(new long[]{offset, size});
+      }
 
-    session.transfer(flowFile, ORIGINAL);
+      @Override
+      public void onAttribute(Relationship relationship, String value) {
+        values.putIfAbsent(relationship, value);
+      }
+    }));
+
+    // the splits point into the content claim of the incoming FlowFile, no bytes are copied
+    for (int i = 0; i < ranges.size(); i++) {
+      batcher.add(relationships.get(i), session.clone(flowFile, ranges.get(i)[0], ranges.get(i)[1]));
+    }
   }
 
   @Override
@@ -0,0 +1,180 @@
+package com.sysunite.nifi;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes an element as a JSON object: attributes become "@name" members (sorted by name, as a DOM does not
+ * keep their order), child elements become members named after the child (an array when the name repeats),
+ * and text next to attributes or child elements becomes a "#text" member. An element with only text (or
+ * nothing) becomes a string. All values are strings, no types are guessed.
+ */
+final class XmlToJson {
+
+  /**
+   * The parts of an element that end up in the JSON, for elements that are read as events instead of as a DOM.
+   */
+  static final class Element {
+
+    final String name;
+    final Map<String, String> attributes = new TreeMap<>();
+    final List<Element> children = new ArrayList<>();
+    final StringBuilder text = new StringBuilder();
+
+    Element(String name) {
+      this.name = name;
+    }
+  }
+
+  private XmlToJson() {
+  }
+
+  static void write(Element element, OutputStream out) throws IOException {
+    final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    writeElement(element, writer);
+    writer.flush();
+  }
+
+  static void write(Node node, OutputStream out) throws IOException {
+    if (node.getNodeType() == Node.ELEMENT_NODE) {
+      write(of(node), out);
+    } else {
+      // text, attribute and other nodes are just their text
+      final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      writeString(node.getTextContent(), writer);
+      writer.flush();
+    }
+  }
+
+  private static Element of(Node node) {
+    final Element element = new Element(node.getNodeName());
+
+    final NamedNodeMap attributes = node.getAttributes();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      final Attr attribute = (Attr) attributes.item(i);
+      element.attributes.put(attribute.getName(), attribute.getValue());
+    }
+
+    final NodeList children = node.getChildNodes();
+    for (int i = 0; i < children.getLength(); i++) {
+      final Node child = children.item(i);
+      switch (child.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          element.children.add(of(child));
+          break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+          element.text.append(child.getNodeValue());
+          break;
+        default:
+          break;
+      }
+    }
+    return element;
+  }
+
+  private static void writeElement(Element element, Writer writer) throws IOException {
+    final String text = element.text.toString();
+
+    if (element.attributes.isEmpty() && element.children.isEmpty()) {
+      writeString(text, writer);
+      return;
+    }
+
+    // group the children by name, in order of first appearance
+    final Map<String, List<Element>> members = new LinkedHashMap<>();
+    for (final Element child : element.children) {
+      List<Element> named = members.get(child.name);
+      if (named == null) {
+        named = new ArrayList<>();
+        members.put(child.name, named);
+      }
+      named.add(child);
+    }
+
+    writer.write('{');
+    boolean first = true;
+
+    for (final Map.Entry<String, String> attribute : element.attributes.entrySet()) {
+      first = writeName("@" + attribute.getKey(), first, writer);
+      writeString(attribute.getValue(), writer);
+    }
+
+    for (final Map.Entry<String, List<Element>> member : members.entrySet()) {
+      first = writeName(member.getKey(), first, writer);
+      final List<Element> named = member.getValue();
+      if (named.size() == 1) {
+        writeElement(named.get(0), writer);
+      } else {
+        writer.write('[');
+        for (int i = 0; i < named.size(); i++) {
+          if (i > 0) {
+            writer.write(',');
+          }
+          writeElement(named.get(i), writer);
+        }
+        writer.write(']');
+      }
+    }
+
+    // whitespace between child elements is only formatting
+    if (!text.trim().isEmpty()) {
+      writeName("#text", first, writer);
+      writeString(text, writer);
+    }
+
+    writer.write('}');
+  }
+
+  private static boolean writeName(String name, boolean first, Writer writer) throws IOException {
+    if (!first) {
+      writer.write(',');
+    }
+    writeString(name, writer);
+    writer.write(':');
+    return false;
+  }
+
+  /**
+   * Writes the value as a quoted and escaped JSON string.
+   */
+  static void writeString(String value, Writer writer) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+    writer.write('"');
+  }
+}
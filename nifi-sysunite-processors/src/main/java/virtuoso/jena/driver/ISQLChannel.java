@@ -2,7 +2,11 @@ package virtuoso.jena.driver;
 
 import com.hp.hpl.jena.update.UpdateException;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 /**
  * User: bastiaan
@@ -23,6 +27,69 @@ public class ISQLChannel {
     }
   }
 
+  /**
+   * Runs the statements in one transaction, sent in JDBC batches of {@code batchSize} statements. When the
+   * transaction deadlocks with another one, it is rolled back and run again, at most {@code retries} times.
+   *
+   * @throws TransactionFailedException if the transaction is rolled back
+   */
+  public static void sendTransaction(VirtGraph virtGraph, List<String> statements, int batchSize, int retries) {
+    final Connection connection = virtGraph.getConnection();
+    for (int attempt = 0; ; attempt++) {
+      try {
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+          int batched = 0;
+          for (final String statement : statements) {
+            stmt.addBatch(statement);
+            if (++batched == batchSize) {
+              stmt.executeBatch();
+              batched = 0;
+            }
+          }
+          if (batched > 0) {
+            stmt.executeBatch();
+          }
+        }
+        connection.commit();
+        return;
+      } catch (SQLException e) {
+        rollback(connection);
+        if (!isDeadlock(e) || attempt >= retries) {
+          throw new TransactionFailedException("Transaction of " + statements.size() + " statements failed after " + (attempt + 1) + " attempts", e);
+        }
+      } finally {
+        try {
+          connection.setAutoCommit(true);
+        } catch (SQLException e) {
+          // the connection is broken, which the next use finds out
+        }
+      }
+    }
+  }
+
+  private static void rollback(Connection connection) {
+    try {
+      connection.rollback();
+    } catch (SQLException e) {
+      // nothing was committed
+    }
+  }
+
+  // Virtuoso reports a deadlock (SR172) with SQL state 40001
+  private static boolean isDeadlock(SQLException e) {
+    for (SQLException next = e; next != null; next = next.getNextException()) {
+      if ("40001".equals(next.getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static PreparedStatement prepareQuery(VirtGraph virtGraph, String query) throws SQLException {
+    return virtGraph.getConnection().prepareStatement(query);
+  }
+
   public static Statement executeQuery(VirtGraph virtGraph, String query) {
     try {
       Statement stmt = virtGraph.createStatement();
@@ -8,4 +8,8 @@ public class TransactionFailedException extends RuntimeException {
   public TransactionFailedException(String message) {
     super(message);
   }
+
+  public TransactionFailedException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
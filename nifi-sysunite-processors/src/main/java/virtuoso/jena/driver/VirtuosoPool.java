@@ -0,0 +1,354 @@
+package virtuoso.jena.driver;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of Virtuoso connections, so the connection setup and login are not paid for every query.
+ *
+ * At most {@code maxSize} connections are borrowed at the same time, further borrowers wait for one to be
+ * released. Idle connections are reused most recently released first, are checked with the validation query
+ * (if any) before they are handed out, and are closed once they have been idle for longer than the idle
+ * timeout.
+ *
+ * The pool can spread its connections over several servers with the same data, i.e. read replicas. Each
+ * connection goes to the next server in turn, or to the one with the fewest borrowed connections. A server
+ * fails when it cannot be connected to, when an idle connection to it does not pass validation, or when a
+ * connection handed back with {@link #invalidate(VirtGraph)} does not work anymore. A server that fails is
+ * ejected and connections go to the other ones; it is tried again after a backoff, which doubles with every
+ * failure in a row.
+ */
+public class VirtuosoPool {
+
+  public enum Balancing {
+    ROUND_ROBIN,
+    LEAST_OUTSTANDING
+  }
+
+  public static final long DEFAULT_EJECT_MILLIS = 30000;
+
+  // the backoff of a server that keeps failing grows to at most 2^5 times the first one
+  private static final int MAX_BACKOFF_DOUBLINGS = 5;
+
+  private static final class Idle {
+
+    private final VirtGraph virtGraph;
+    private final long since;
+
+    private Idle(VirtGraph virtGraph, long since) {
+      this.virtGraph = virtGraph;
+      this.since = since;
+    }
+  }
+
+  private static final class Endpoint {
+
+    private final String address;
+    private final Deque<Idle> idle = new ArrayDeque<>();
+    private int outstanding;
+    private int failures;
+    private long ejectedUntil;
+
+    private Endpoint(String address) {
+      this.address = address;
+    }
+  }
+
+  private final String username, password;
+  private final long idleTimeoutMillis;
+  private final String validationQuery;
+  private final String defaultGraph;
+  private final Balancing balancing;
+  private final long ejectMillis;
+
+  private final Semaphore permits;
+  private final Endpoint[] endpoints;
+  // the server of every borrowed connection
+  private final Map<VirtGraph, Endpoint> borrowed = new IdentityHashMap<>();
+  private int next;
+  private boolean closed;
+
+  /**
+   * @param idleTimeoutMillis how long a released connection is kept open, 0 to keep it until the pool is closed
+   * @param validationQuery a query that is run on an idle connection before it is reused, or null to only check
+   *                        whether it is still open
+   */
+  public VirtuosoPool(String address, String username, String password, int maxSize, long idleTimeoutMillis, String validationQuery) {
+    this(address, username, password, maxSize, idleTimeoutMillis, validationQuery, null);
+  }
+
+  /**
+   * @param defaultGraph the graph the connections read from, or null to read from all graphs
+   */
+  public VirtuosoPool(String address, String username, String password, int maxSize, long idleTimeoutMillis, String validationQuery,
+                      String defaultGraph) {
+    this(Collections.singletonList(address), username, password, maxSize, idleTimeoutMillis, validationQuery, defaultGraph,
+      Balancing.ROUND_ROBIN, DEFAULT_EJECT_MILLIS);
+  }
+
+  /**
+   * @param addresses the JDBC addresses of servers with the same data
+   * @param maxSize the maximum number of connections to all servers together
+   * @param ejectMillis how long a server that failed is left out, before it is tried again
+   */
+  public VirtuosoPool(List<String> addresses, String username, String password, int maxSize, long idleTimeoutMillis, String validationQuery,
+                      String defaultGraph, Balancing balancing, long ejectMillis) {
+    this.username = username;
+    this.password = password;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.validationQuery = validationQuery;
+    this.defaultGraph = defaultGraph;
+    this.balancing = balancing;
+    this.ejectMillis = ejectMillis;
+    this.permits = new Semaphore(maxSize, true);
+    this.endpoints = new Endpoint[addresses.size()];
+    for (int i = 0; i < endpoints.length; i++) {
+      endpoints[i] = new Endpoint(addresses.get(i));
+    }
+  }
+
+  /**
+   * @return the JDBC address of the server of a borrowed connection
+   */
+  public synchronized String getAddress(VirtGraph virtGraph) {
+    final Endpoint endpoint = borrowed.get(virtGraph);
+    return endpoint != null ? endpoint.address : null;
+  }
+
+  /**
+   * @return the graph the connections read from, or null if they read from all graphs
+   */
+  public String getDefaultGraph() {
+    return defaultGraph;
+  }
+
+  /**
+   * Takes a connection out of the pool, or opens a new one. Every borrowed connection has to be handed back
+   * with {@link #release(VirtGraph)}, or with {@link #invalidate(VirtGraph)} if it failed.
+   * @throws SQLTimeoutException if no connection became available in time
+   */
+  public VirtGraph borrow(long timeout, TimeUnit unit) throws SQLException {
+    try {
+      if (!permits.tryAcquire(timeout, unit)) {
+        throw new SQLTimeoutException("No Virtuoso connection available within " + unit.toMillis(timeout) + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException(e);
+    }
+
+    try {
+      // every server is connected to at most once
+      final List<Endpoint> tried = new ArrayList<>();
+      RuntimeException failure = null;
+      Endpoint endpoint;
+      while ((endpoint = select(tried)) != null) {
+        final VirtGraph idle = takeIdle(endpoint);
+        if (idle != null) {
+          if (isValid(idle)) {
+            return borrowed(endpoint, idle);
+          }
+          closeQuietly(idle);
+          // this also closes the other idle connections to the server; when it is the only server left, a new
+          // connection to it is opened next
+          eject(endpoint);
+          continue;
+        }
+        tried.add(endpoint);
+        try {
+          return borrowed(endpoint, open(endpoint));
+        } catch (RuntimeException e) {
+          eject(endpoint);
+          failure = e;
+        }
+      }
+      throw new SQLException("None of the Virtuoso servers can be connected to", failure);
+    } catch (RuntimeException | SQLException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Hands a borrowed connection back for reuse.
+   */
+  public void release(VirtGraph virtGraph) {
+    final boolean keep;
+    synchronized (this) {
+      final Endpoint endpoint = returned(virtGraph);
+      keep = !closed && endpoint != null;
+      if (keep) {
+        endpoint.idle.push(new Idle(virtGraph, System.currentTimeMillis()));
+      }
+    }
+    if (!keep) {
+      closeQuietly(virtGraph);
+    }
+    permits.release();
+  }
+
+  /**
+   * Hands back a borrowed connection that failed, it is closed instead of reused. When the connection does not
+   * work anymore, the server failed and is ejected; a failure of the query itself, i.e. a syntax error or a
+   * timeout, leaves the server in the pool.
+   * @return true if the server failed, so the query may succeed on a new connection
+   */
+  public boolean invalidate(VirtGraph virtGraph) {
+    final Endpoint endpoint;
+    synchronized (this) {
+      endpoint = returned(virtGraph);
+    }
+    final boolean failed = endpoint != null && !isValid(virtGraph);
+    if (failed) {
+      eject(endpoint);
+    }
+    closeQuietly(virtGraph);
+    permits.release();
+    return failed;
+  }
+
+  /**
+   * Closes all idle connections; connections that are still borrowed are closed when they are released.
+   */
+  public void close() {
+    final List<Idle> drained = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      for (final Endpoint endpoint : endpoints) {
+        drained.addAll(endpoint.idle);
+        endpoint.idle.clear();
+      }
+    }
+    for (final Idle connection : drained) {
+      closeQuietly(connection.virtGraph);
+    }
+  }
+
+  /**
+   * @return the server for the next connection, or null if all servers were tried
+   */
+  private synchronized Endpoint select(List<Endpoint> tried) throws SQLException {
+    if (closed) {
+      throw new SQLException("The Virtuoso connection pool is closed");
+    }
+    final long now = System.currentTimeMillis();
+    final int start = next;
+    next = (next + 1) % endpoints.length;
+
+    Endpoint selected = null;
+    // when all servers are ejected, the one that is due back first is tried anyway
+    Endpoint soonest = null;
+    for (int i = 0; i < endpoints.length; i++) {
+      final Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+      if (tried.contains(endpoint)) {
+        continue;
+      }
+      if (endpoint.ejectedUntil > now) {
+        if (soonest == null || endpoint.ejectedUntil < soonest.ejectedUntil) {
+          soonest = endpoint;
+        }
+      } else if (selected == null || balancing == Balancing.LEAST_OUTSTANDING && endpoint.outstanding < selected.outstanding) {
+        selected = endpoint;
+      }
+    }
+    return selected != null ? selected : soonest;
+  }
+
+  private synchronized VirtGraph borrowed(Endpoint endpoint, VirtGraph virtGraph) {
+    endpoint.outstanding++;
+    endpoint.failures = 0;
+    endpoint.ejectedUntil = 0;
+    borrowed.put(virtGraph, endpoint);
+    return virtGraph;
+  }
+
+  // the caller holds the lock
+  private Endpoint returned(VirtGraph virtGraph) {
+    final Endpoint endpoint = borrowed.remove(virtGraph);
+    if (endpoint != null) {
+      endpoint.outstanding--;
+    }
+    return endpoint;
+  }
+
+  private void eject(Endpoint endpoint) {
+    final List<Idle> drained;
+    synchronized (this) {
+      endpoint.ejectedUntil = System.currentTimeMillis() + (ejectMillis << Math.min(endpoint.failures, MAX_BACKOFF_DOUBLINGS));
+      endpoint.failures++;
+      // the idle connections to a server that is down are of no use anymore
+      drained = new ArrayList<>(endpoint.idle);
+      endpoint.idle.clear();
+    }
+    for (final Idle connection : drained) {
+      closeQuietly(connection.virtGraph);
+    }
+  }
+
+  private VirtGraph takeIdle(Endpoint endpoint) {
+    final Idle[] expired;
+    final Idle next;
+    synchronized (this) {
+      // the oldest connections are at the bottom of the stack
+      final long now = System.currentTimeMillis();
+      final Deque<Idle> evicted = new ArrayDeque<>();
+      while (idleTimeoutMillis > 0 && !endpoint.idle.isEmpty() && now - endpoint.idle.peekLast().since > idleTimeoutMillis) {
+        evicted.add(endpoint.idle.pollLast());
+      }
+      expired = evicted.toArray(new Idle[evicted.size()]);
+      next = endpoint.idle.poll();
+    }
+    for (final Idle connection : expired) {
+      closeQuietly(connection.virtGraph);
+    }
+    return next == null ? null : next.virtGraph;
+  }
+
+  private VirtGraph open(Endpoint endpoint) {
+    if (defaultGraph != null) {
+      // restricted to the graph, so Virtuoso can use its graph indexes
+      final VirtGraph virtGraph = new VirtGraph(defaultGraph, endpoint.address, username, password);
+      virtGraph.setReadFromAllGraphs(false);
+      return virtGraph;
+    }
+    final VirtGraph virtGraph = new VirtGraph(endpoint.address, username, password);
+
+    //This is a very important setting. It makes sure that for some queries, we query all graphs
+    virtGraph.setReadFromAllGraphs(true);
+    return virtGraph;
+  }
+
+  private boolean isValid(VirtGraph virtGraph) {
+    try {
+      if (virtGraph.getConnection().isClosed()) {
+        return false;
+      }
+      if (validationQuery != null) {
+        try (Statement stmt = virtGraph.createStatement()) {
+          stmt.execute(validationQuery);
+        }
+      }
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private static void closeQuietly(VirtGraph virtGraph) {
+    try {
+      virtGraph.close();
+    } catch (Exception e) {
+      // the connection is dropped anyway
+    }
+  }
+}
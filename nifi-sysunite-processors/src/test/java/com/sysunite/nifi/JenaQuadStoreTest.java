@@ -0,0 +1,409 @@
+package com.sysunite.nifi;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.update.UpdateAction;
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processors against a Jena dataset in memory, so unlike VirtuosoClientTest these need no server.
+ */
+public class JenaQuadStoreTest {
+
+  private static final String DATA = "INSERT DATA {\n"
+    + "  GRAPH <http://example.org/x> { <http://ba#a> <http://example.org/b> \"dev\" . }\n"
+    + "  GRAPH <http://example.org/y> { <http://example.org/c> <http://example.org/d> <http://example.org/e> . }\n"
+    + "}";
+
+  // a client on a store with the data of DATA
+  private TestRunner client(String query) throws InitializationException {
+    TestRunner testRunner = TestRunners.newTestRunner(VirtuosoClient.class);
+    JenaQuadStoreService service = new JenaQuadStoreService();
+    testRunner.addControllerService("jena", service);
+    testRunner.enableControllerService(service);
+    UpdateAction.parseExecute(DATA, service.getStore().getDataset());
+
+    testRunner.setProperty(VirtuosoClient.CONNECTION_SERVICE, "jena");
+    testRunner.setProperty(VirtuosoClient.QUERY, query);
+    testRunner.setProperty("ba", "http://ba#");
+    return testRunner;
+  }
+
+  @Test
+  public void selectFromAllGraphs() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s ?p ?o WHERE {?s ?p ?o} ORDER BY ?s");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    assertEquals("ba:a\thttp://example.org/b\tdev", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+    assertEquals("http://example.org/c\thttp://example.org/d\thttp://example.org/e", IOUtils.toString(testRunner.getContentAsByteArray(results.get(1))));
+  }
+
+  @Test
+  public void selectFromDefaultGraph() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_NDJSON.getValue());
+    testRunner.setProperty(VirtuosoClient.DEFAULT_GRAPHS, "http://example.org/y");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    assertEquals("{\"s\":\"http://example.org/c\"}\n", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void batchPerDefaultGraph() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.IRI_BINDINGS, "p");
+    testRunner.setProperty(VirtuosoClient.BATCH_SIZE, "10");
+    testRunner.setProperty(VirtuosoClient.DEFAULT_GRAPHS, "${graph}");
+    // a query with bindings is not evaluated as an expression
+    testRunner.setValidateExpressionUsage(false);
+
+    Map<String, String> x = new HashMap<>();
+    x.put("graph", "http://example.org/x");
+    x.put("p", "http://example.org/b");
+    Map<String, String> y = new HashMap<>();
+    y.put("graph", "http://example.org/y");
+    y.put("p", "http://example.org/d");
+    testRunner.enqueue(new byte[0], x);
+    testRunner.enqueue(new byte[0], y);
+    testRunner.run();
+
+    // each flowfile reads from its own graph, not from the graph of the first flowfile of the batch
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    assertEquals("ba:a", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+    assertEquals("http://example.org/c", IOUtils.toString(testRunner.getContentAsByteArray(results.get(1))));
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 2);
+  }
+
+  @Test
+  public void batchWithLimit() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o} LIMIT 1");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.IRI_BINDINGS, "p");
+    testRunner.setValidateExpressionUsage(false);
+
+    // the limit would be on the rows of all flowfiles together
+    testRunner.setProperty(VirtuosoClient.BATCH_SIZE, "10");
+    testRunner.assertNotValid();
+
+    testRunner.setProperty(VirtuosoClient.BATCH_SIZE, "1");
+    testRunner.enqueue(new byte[0], Collections.singletonMap("p", "http://example.org/b"));
+    testRunner.enqueue(new byte[0], Collections.singletonMap("p", "http://example.org/d"));
+    testRunner.run(2);
+
+    // one row for every flowfile
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    assertEquals("ba:a", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+    assertEquals("http://example.org/c", IOUtils.toString(testRunner.getContentAsByteArray(results.get(1))));
+  }
+
+  @Test
+  public void shardedQuery() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_SEPARATED_VALUES.getValue());
+    testRunner.setProperty(VirtuosoClient.SHARDS, "3");
+    testRunner.setProperty(VirtuosoClient.SHARD_VARIABLE, "s");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    results.get(0).assertAttributeEquals("record.count", "2");
+    Set<String> rows = new HashSet<>(Arrays.asList(IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))).split("\n")));
+    assertEquals(new HashSet<>(Arrays.asList("ba:a\thttp://example.org/b\tdev", "http://example.org/c\thttp://example.org/d\thttp://example.org/e")), rows);
+  }
+
+  @Test
+  public void shardedQueryWithLimit() throws InitializationException, IOException {
+
+    // the limit is on the whole query, not on every shard
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o} ORDER BY ?s LIMIT 1");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_SEPARATED_VALUES.getValue());
+    testRunner.setProperty(VirtuosoClient.SHARDS, "3");
+    testRunner.setProperty(VirtuosoClient.SHARD_VARIABLE, "s");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    assertEquals("ba:a\n", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void shardsCountAsRunningQueries() throws InitializationException {
+
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.SHARDS, "3");
+    testRunner.setProperty(VirtuosoClient.SHARD_VARIABLE, "s");
+    testRunner.setProperty(VirtuosoClient.MAX_RUNNING_QUERIES, "2");
+    testRunner.assertNotValid();
+    testRunner.setProperty(VirtuosoClient.MAX_RUNNING_QUERIES, "3");
+    testRunner.assertValid();
+  }
+
+  @Test
+  public void pagedExportRunsOnce() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s ?o WHERE {?s ?p ?o} ORDER BY DESC(?s)");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.PAGE_SIZE, "1");
+    testRunner.setProperty(VirtuosoClient.PAGE_ORDER, "?s");
+
+    // two pages, an empty last one, and then nothing more
+    testRunner.run(5);
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    assertEquals("ba:a", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+    assertEquals("http://example.org/c", IOUtils.toString(testRunner.getContentAsByteArray(results.get(1))));
+    testRunner.getStateManager().assertStateEquals("done", "true", Scope.LOCAL);
+  }
+
+  @Test
+  public void pagesNeedAnOrder() throws InitializationException {
+
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.PAGE_SIZE, "1");
+    testRunner.assertNotValid();
+  }
+
+  @Test
+  public void runningQueriesPenalizeWaitingFlowFiles() throws Exception {
+
+    TestRunner testRunner = client("SELECT ?s WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.MAX_RUNNING_QUERIES, "1");
+    testRunner.setProperty(VirtuosoClient.RUNNING_QUERY_WAIT, "100 millis");
+    testRunner.setThreadCount(2);
+    testRunner.enqueue(new ByteArrayInputStream(new byte[0]));
+    testRunner.enqueue(new ByteArrayInputStream(new byte[0]));
+
+    // a writer holds up the first query, so the second task finds no running query free
+    Dataset dataset = ((JenaQuadStoreService) testRunner.getControllerService("jena")).getStore().getDataset();
+    CountDownLatch locked = new CountDownLatch(1);
+    Thread writer = new Thread(() -> {
+      dataset.getLock().enterCriticalSection(Lock.WRITE);
+      locked.countDown();
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        dataset.getLock().leaveCriticalSection();
+      }
+    });
+    writer.start();
+    locked.await();
+    testRunner.run(2);
+    writer.join();
+
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 1);
+    assertEquals(1, testRunner.getQueueSize().getObjectCount());
+    assertEquals(1, testRunner.getPenalizedFlowFiles().size());
+  }
+
+  @Test
+  public void watermarkKeepsRowsWithTheSameValue() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("SELECT ?s ?v WHERE { ?s <http://example.org/version> ?v }");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.WATERMARK_VARIABLE, "v");
+    Dataset dataset = ((JenaQuadStoreService) testRunner.getControllerService("jena")).getStore().getDataset();
+    UpdateAction.parseExecute("INSERT DATA { GRAPH <http://example.org/v> {"
+      + " <http://example.org/a> <http://example.org/version> 1 . <http://example.org/b> <http://example.org/version> 2 . } }", dataset);
+
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+
+    // a row at the watermark that shows up later is sent on, the one that was sent on already is not
+    UpdateAction.parseExecute("INSERT DATA { GRAPH <http://example.org/v> { <http://example.org/c> <http://example.org/version> 2 . } }", dataset);
+    testRunner.run();
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(3, results.size());
+    assertEquals("http://example.org/c", IOUtils.toString(testRunner.getContentAsByteArray(results.get(2))));
+
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 3);
+  }
+
+  @Test
+  public void watermarkWithoutTheVariable() throws InitializationException {
+
+    TestRunner testRunner = client("SELECT ?s ?v WHERE { ?s ?p ?o OPTIONAL { ?s <http://example.org/version> ?v } }");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.WATERMARK_VARIABLE, "v");
+
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+
+    // the rows without the variable are not sent on again, the ones with it are
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+    Dataset dataset = ((JenaQuadStoreService) testRunner.getControllerService("jena")).getStore().getDataset();
+    UpdateAction.parseExecute("INSERT DATA { GRAPH <http://example.org/v> { <http://example.org/a> <http://example.org/version> 1 . } }", dataset);
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 3);
+  }
+
+  @Test
+  public void watermarkWithTooManyEqualValues() throws InitializationException {
+
+    TestRunner testRunner = client("SELECT ?s ?v WHERE { ?s <http://example.org/version> ?v }");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_SEPARATED_VALUES.getValue());
+    testRunner.setProperty(VirtuosoClient.WATERMARK_VARIABLE, "v");
+    Dataset dataset = ((JenaQuadStoreService) testRunner.getControllerService("jena")).getStore().getDataset();
+    StringBuilder insert = new StringBuilder("INSERT DATA { GRAPH <http://example.org/v> {\n");
+    for (int i = 0; i <= 10000; i++) {
+      insert.append("<http://example.org/s").append(i).append("> <http://example.org/version> 1 .\n");
+    }
+    UpdateAction.parseExecute(insert.append("} }").toString(), dataset);
+
+    testRunner.run();
+    testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW).get(0).assertAttributeEquals("record.count", "10001");
+
+    // the hashes of that many rows do not fit in the state, so the next run starts above the watermark
+    testRunner.getStateManager().assertStateNotSet("watermark.rows", Scope.CLUSTER);
+    testRunner.getStateManager().assertStateEquals("watermark.exclusive", "true", Scope.CLUSTER);
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 1);
+    UpdateAction.parseExecute("INSERT DATA { GRAPH <http://example.org/v> { <http://example.org/a> <http://example.org/version> 2 . } }", dataset);
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+  }
+
+  @Test
+  public void constructNTriples() throws InitializationException, IOException {
+
+    TestRunner testRunner = client("CONSTRUCT { ?s ?p ?o } WHERE { GRAPH <http://example.org/y> { ?s ?p ?o } }");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_NTRIPLES.getValue());
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    assertEquals("<http://example.org/c> <http://example.org/d> <http://example.org/e> .\n",
+      IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void bulkLoad() throws InitializationException {
+
+    TestRunner testRunner = TestRunners.newTestRunner(VirtuosoBulkLoader.class);
+    JenaQuadStoreService service = new JenaQuadStoreService();
+    testRunner.addControllerService("jena", service);
+    testRunner.enableControllerService(service);
+
+    testRunner.setProperty(VirtuosoBulkLoader.CONNECTION_SERVICE, "jena");
+    testRunner.setProperty(VirtuosoBulkLoader.GRAPH, "http://example.org/graph");
+    testRunner.setProperty(VirtuosoBulkLoader.FORMAT, VirtuosoBulkLoader.FORMAT_TURTLE.getValue());
+    testRunner.setProperty(VirtuosoBulkLoader.TRIPLES_PER_STATEMENT, "2");
+    testRunner.setProperty(VirtuosoBulkLoader.TRANSACTION_SIZE, "3");
+
+    testRunner.enqueue(new ByteArrayInputStream((
+      "@prefix ex: <http://example.org/> .\n" +
+      "ex:a ex:name \"a\" ; ex:next ex:b .\n" +
+      "ex:b ex:name \"b\" ; ex:next ex:c .\n" +
+      "ex:c ex:name \"c\" .\n").getBytes()));
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(VirtuosoBulkLoader.SUCCESS, 1);
+    testRunner.getFlowFilesForRelationship(VirtuosoBulkLoader.SUCCESS).get(0).assertAttributeEquals(VirtuosoBulkLoader.TRIPLES_LOADED, "5");
+    assertEquals(5, service.getStore().getDataset().getNamedModel("http://example.org/graph").size());
+  }
+
+  @Test
+  public void blankNodesAcrossStatements() throws InitializationException {
+
+    TestRunner testRunner = TestRunners.newTestRunner(VirtuosoBulkLoader.class);
+    JenaQuadStoreService service = new JenaQuadStoreService();
+    testRunner.addControllerService("jena", service);
+    testRunner.enableControllerService(service);
+
+    testRunner.setProperty(VirtuosoBulkLoader.CONNECTION_SERVICE, "jena");
+    testRunner.setProperty(VirtuosoBulkLoader.GRAPH, "http://example.org/graph");
+    testRunner.setProperty(VirtuosoBulkLoader.FORMAT, VirtuosoBulkLoader.FORMAT_TURTLE.getValue());
+    testRunner.setProperty(VirtuosoBulkLoader.TRIPLES_PER_STATEMENT, "1");
+    testRunner.setProperty(VirtuosoBulkLoader.TRANSACTION_SIZE, "1");
+
+    // _:x is used far apart, in statements of one triple each
+    testRunner.enqueue(new ByteArrayInputStream((
+      "@prefix ex: <http://example.org/> .\n" +
+      "ex:a ex:address _:x .\n" +
+      "ex:b ex:name \"b\" .\n" +
+      "_:y ex:city \"c\" .\n" +
+      "_:x ex:street \"s\" ; ex:in _:y .\n" +
+      "ex:c ex:knows [ ex:name \"d\" ] .\n").getBytes()));
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(VirtuosoBulkLoader.SUCCESS, 1);
+    testRunner.getFlowFilesForRelationship(VirtuosoBulkLoader.SUCCESS).get(0).assertAttributeEquals(VirtuosoBulkLoader.TRIPLES_LOADED, "7");
+    Dataset dataset = service.getStore().getDataset();
+    assertEquals(7, dataset.getNamedModel("http://example.org/graph").size());
+    assertTrue(QueryExecutionFactory.create("PREFIX ex: <http://example.org/>\n"
+      + "ASK { GRAPH ex:graph { ex:a ex:address ?x . ?x ex:street \"s\" ; ex:in ?y . ?y ex:city \"c\" . ex:c ex:knows ?z . ?z ex:name \"d\" }"
+      + " FILTER (isBlank(?x) && isBlank(?y) && isBlank(?z)) }",
+      dataset).execAsk());
+  }
+
+  @Test
+  public void invalidQuery() throws InitializationException {
+
+    // A failed query is logged, the flowfile goes on as the original
+    TestRunner testRunner = client("SELECT ?s WHERE {");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.enqueue(new ByteArrayInputStream(new byte[0]));
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(VirtuosoClient.ORIGINAL, 1);
+  }
+}
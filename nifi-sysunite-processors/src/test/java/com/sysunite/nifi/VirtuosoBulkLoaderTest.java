@@ -0,0 +1,118 @@
+package com.sysunite.nifi;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+import virtuoso.jena.driver.ISQLChannel;
+import virtuoso.jena.driver.Virtuoso;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VirtuosoBulkLoaderTest {
+
+  private TestRunner testRunner;
+
+  /**
+   *
+   *  -> Run the docker tenforce/virtuoso:1.0.0-virtuoso7.2.2 image before running this test
+   *  -> Set properties in config.properties
+   *
+   */
+
+
+
+  @Before
+  public void init() throws InitializationException {
+
+    Virtuoso quadStore = new Virtuoso("jdbc:virtuoso://"+TestConfig.getVirtuosoAddress(), TestConfig.getVirtuosoUser(), TestConfig.getVirtuosoPassword());
+    ISQLChannel.sendQuery(quadStore.getVirtGraph(), "DELETE FROM DB.DBA.RDF_QUAD");
+
+    testRunner = TestRunners.newTestRunner(VirtuosoBulkLoader.class);
+
+    VirtuosoConnectionPool service = new VirtuosoConnectionPool();
+    testRunner.addControllerService("virtuoso", service);
+    testRunner.setProperty(service, VirtuosoConnectionPool.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(service, VirtuosoConnectionPool.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(service, VirtuosoConnectionPool.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.enableControllerService(service);
+
+    testRunner.setProperty(VirtuosoBulkLoader.CONNECTION_SERVICE, "virtuoso");
+    testRunner.setProperty(VirtuosoBulkLoader.GRAPH, "http://example.org/graph");
+  }
+
+  @Test
+  public void loadTurtle() throws IOException {
+
+    // Small statements and transactions, so the load takes several of both
+    testRunner.setProperty(VirtuosoBulkLoader.FORMAT, VirtuosoBulkLoader.FORMAT_TURTLE.getValue());
+    testRunner.setProperty(VirtuosoBulkLoader.TRIPLES_PER_STATEMENT, "2");
+    testRunner.setProperty(VirtuosoBulkLoader.STATEMENTS_PER_BATCH, "2");
+    testRunner.setProperty(VirtuosoBulkLoader.TRANSACTION_SIZE, "3");
+
+    testRunner.enqueue(new ByteArrayInputStream((
+      "@prefix ex: <http://example.org/> .\n" +
+      "ex:a ex:name \"a \\\"quoted\\\" name\"@en ; ex:next ex:b .\n" +
+      "ex:b ex:name \"b\" ; ex:next ex:c .\n" +
+      "ex:c ex:name \"c\" .\n").getBytes()));
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(VirtuosoBulkLoader.SUCCESS, 1);
+    MockFlowFile loaded = testRunner.getFlowFilesForRelationship(VirtuosoBulkLoader.SUCCESS).get(0);
+    loaded.assertAttributeEquals(VirtuosoBulkLoader.TRIPLES_LOADED, "5");
+    assertEquals(5, testRunner.getCounterValue("Triples loaded").longValue());
+
+    assertEquals(new HashSet<>(Arrays.asList("ex:a", "ex:b", "ex:c")), new HashSet<>(names()));
+  }
+
+  @Test
+  public void loadQuads() throws IOException {
+
+    // A quad without a graph goes into the graph of the processor
+    testRunner.setProperty(VirtuosoBulkLoader.FORMAT, VirtuosoBulkLoader.FORMAT_NQUADS.getValue());
+
+    testRunner.enqueue(new ByteArrayInputStream((
+      "<http://example.org/a> <http://example.org/name> \"a\" <http://example.org/other> .\n" +
+      "<http://example.org/b> <http://example.org/name> \"b\" .\n").getBytes()));
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(VirtuosoBulkLoader.SUCCESS, 1);
+    assertEquals(Arrays.asList("ex:b"), names());
+  }
+
+  @Test
+  public void invalidRdf() {
+
+    testRunner.enqueue(new ByteArrayInputStream("<http://example.org/a> <http://example.org/name> .\n".getBytes()));
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(VirtuosoBulkLoader.FAILURE, 1);
+    testRunner.getFlowFilesForRelationship(VirtuosoBulkLoader.FAILURE).get(0).assertAttributeEquals(VirtuosoBulkLoader.TRIPLES_LOADED, "0");
+  }
+
+  // the subjects with a name in the graph of the processor
+  private List<String> names() throws IOException {
+    TestRunner client = TestRunners.newTestRunner(VirtuosoClient.class);
+    client.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    client.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    client.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    client.setProperty(VirtuosoClient.SELECT, "s");
+    client.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    client.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_SEPARATED_VALUES.getValue());
+    client.setProperty(VirtuosoClient.QUERY, "SELECT ?s WHERE { GRAPH <http://example.org/graph> { ?s <http://example.org/name> ?name } }");
+    client.setProperty("ex", "http://example.org/");
+    client.run();
+
+    List<MockFlowFile> results = client.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    return Arrays.asList(IOUtils.toString(client.getContentAsByteArray(results.get(0))).trim().split("\n"));
+  }
+}
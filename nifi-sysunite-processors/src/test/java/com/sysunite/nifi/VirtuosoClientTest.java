@@ -1,6 +1,8 @@
 package com.sysunite.nifi;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -12,7 +14,15 @@ import virtuoso.jena.driver.Virtuoso;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
 
 public class VirtuosoClientTest {
 
@@ -92,4 +102,458 @@ public class VirtuosoClientTest {
     assert(IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))).equals("ba:a\tb\tdev"));
     assert(IOUtils.toString(testRunner.getContentAsByteArray(results.get(1))).equals("c\td\te"));
   }
+
+  @Test
+  public void withConnectionService() throws InitializationException, IOException {
+
+    // The pool is shared, so the connection of the first flowfile is reused for the second
+    VirtuosoConnectionPool service = new VirtuosoConnectionPool();
+    testRunner.addControllerService("virtuoso", service);
+    testRunner.setProperty(service, VirtuosoConnectionPool.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(service, VirtuosoConnectionPool.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(service, VirtuosoConnectionPool.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(service, VirtuosoConnectionPool.MAX_CONNECTIONS, "1");
+    testRunner.setProperty(service, VirtuosoConnectionPool.VALIDATION_QUERY, "SELECT 1");
+    testRunner.enableControllerService(service);
+
+    testRunner.setProperty(VirtuosoClient.CONNECTION_SERVICE, "virtuoso");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()));
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 2);
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 4);
+  }
+
+  @Test
+  public void longestPrefixWins() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+
+    // both namespaces match the subject, only the longest is applied
+    testRunner.setProperty("b", "http://b");
+    testRunner.setProperty("ba", "http://ba#");
+
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    results.get(0).assertContentEquals("ba:a\tb\tdev");
+  }
+
+  @Test
+  public void streamedNdjson() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_NDJSON.getValue());
+    testRunner.setProperty(VirtuosoClient.FETCH_SIZE, "1");
+
+    testRunner.setProperty("ba", "http://ba#");
+
+    testRunner.run();
+
+    // All rows end up in one flowfile
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    results.get(0).assertAttributeEquals("record.count", "2");
+    results.get(0).assertContentEquals("{\"s\":\"ba:a\",\"p\":\"b\",\"o\":\"dev\"}\n{\"s\":\"c\",\"p\":\"d\",\"o\":\"e\"}\n");
+  }
+
+  @Test
+  public void streamedRowsPerFlowFile() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_SEPARATED_VALUES.getValue());
+    testRunner.setProperty(VirtuosoClient.ROWS_PER_FLOWFILE, "1");
+
+    testRunner.setProperty("ba", "http://ba#");
+
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    results.get(0).assertContentEquals("ba:a\tb\tdev\n");
+    results.get(1).assertContentEquals("c\td\te\n");
+  }
+
+  @Test
+  public void boundVariables() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s WHERE {?s ?p ?value}");
+    testRunner.setProperty(VirtuosoClient.LITERAL_BINDINGS, "value");
+
+    // a quote in the attribute stays inside the literal
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("value", "dev");
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), attributes);
+    attributes.put("value", "dev\" } ");
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), attributes);
+
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 2);
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    results.get(0).assertContentEquals("http://ba#a");
+  }
+
+  @Test
+  public void preparedStatement() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?o WHERE {?subject ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.IRI_BINDINGS, "subject");
+    testRunner.setProperty(VirtuosoClient.PREPARED_STATEMENT, "true");
+
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "http://ba#a"));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "c"));
+
+    testRunner.run(2);
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    results.get(0).assertContentEquals("dev");
+    results.get(1).assertContentEquals("e");
+  }
+
+  @Test
+  public void batchedLookup() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?o WHERE {?subject ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.IRI_BINDINGS, "subject");
+    testRunner.setProperty(VirtuosoClient.BATCH_SIZE, "10");
+
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "c"));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "http://ba#a"));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "unknown"));
+
+    // one query for all three flowfiles
+    testRunner.run();
+
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 3);
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    for (MockFlowFile result : results) {
+      // every row is a child of the flowfile it was looked up for
+      result.assertContentEquals(result.getAttribute("subject").equals("c") ? "e" : "dev");
+    }
+  }
+
+  @Test
+  public void cachedResult() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?o WHERE {<${subject}> ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.CACHE_ENTRIES, "10");
+
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "c"));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "c"));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), Collections.singletonMap("subject", "http://ba#a"));
+
+    testRunner.run(3);
+
+    // the second lookup of 'c' is answered from the cache
+    assertEquals(Long.valueOf(1), testRunner.getCounterValue("Cache hits"));
+    assertEquals(Long.valueOf(2), testRunner.getCounterValue("Cache misses"));
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(3, results.size());
+    results.get(0).assertContentEquals("e");
+    results.get(1).assertContentEquals("e");
+    results.get(2).assertContentEquals("dev");
+  }
+
+  @Test
+  public void pagedExportKeepsState() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.PAGE_SIZE, "1");
+    testRunner.setProperty(VirtuosoClient.PAGE_ORDER, "?s");
+
+    testRunner.setProperty("ba", "http://ba#");
+
+    // one page per run, the state knows where the next one starts
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 1);
+    testRunner.getStateManager().assertStateEquals("offset", "1", Scope.LOCAL);
+
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+    testRunner.getStateManager().assertStateEquals("offset", "2", Scope.LOCAL);
+
+    // the last page is empty and ends the export, which is not started again
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+    testRunner.getStateManager().assertStateEquals("done", "true", Scope.LOCAL);
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+
+    // every row once, in whatever order Virtuoso sorts the subjects
+    Set<String> rows = new HashSet<>();
+    for (MockFlowFile result : testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW)) {
+      rows.add(new String(result.toByteArray()));
+    }
+    assertEquals(new HashSet<>(Arrays.asList("ba:a\tb\tdev", "c\td\te")), rows);
+  }
+
+  @Test
+  public void incrementalRuns() throws IOException {
+
+    Virtuoso quadStore = new Virtuoso("jdbc:virtuoso://"+TestConfig.getVirtuosoAddress(), TestConfig.getVirtuosoUser(), TestConfig.getVirtuosoPassword());
+    ISQLChannel.sendQuery(quadStore.getVirtGraph(), "sparql INSERT DATA INTO GRAPH <z> {  <n1> <version> 1 . <n2> <version> 2 . } ");
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?version WHERE { GRAPH <z> { ?s <version> ?version } }");
+    testRunner.setProperty(VirtuosoClient.WATERMARK_VARIABLE, "version");
+
+    // the first run sends on everything, in the order of the watermark
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+    assertEquals("n2", new String(testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW).get(1).toByteArray()));
+    testRunner.getStateManager().assertStateSet("watermark", Scope.CLUSTER);
+
+    // nothing new
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+
+    // only the new row
+    ISQLChannel.sendQuery(quadStore.getVirtGraph(), "sparql INSERT DATA INTO GRAPH <z> {  <n3> <version> 3 . } ");
+    testRunner.run();
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 3);
+    assertEquals("n3", new String(testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW).get(2).toByteArray()));
+  }
+
+  @Test
+  public void pagedFlowFile() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.PAGE_SIZE, "1");
+    testRunner.setProperty(VirtuosoClient.PAGE_ORDER, "?s");
+
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()));
+
+    // the flowfile goes back into the queue until its last page
+    testRunner.run(3);
+
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 2);
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 1);
+    testRunner.getFlowFilesForRelationship(VirtuosoClient.ORIGINAL).get(0).assertAttributeNotExists(VirtuosoClient.PAGE_OFFSET);
+  }
+
+  @Test
+  public void withinQueryTimeout() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.QUERY_TIMEOUT, "10 secs");
+    testRunner.setProperty(VirtuosoClient.MAX_RUNNING_QUERIES, "1");
+
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()));
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()));
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(VirtuosoClient.ORIGINAL, 2);
+    testRunner.assertTransferCount(VirtuosoClient.TIMEOUT, 0);
+    testRunner.assertTransferCount(VirtuosoClient.RESULT_ROW, 4);
+  }
+
+  @Test
+  public void shardedQuery() throws IOException {
+
+    // Every row comes from exactly one of the shards
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_SEPARATED_VALUES.getValue());
+    testRunner.setProperty(VirtuosoClient.SHARDS, "3");
+    testRunner.assertNotValid();
+    testRunner.setProperty(VirtuosoClient.SHARD_VARIABLE, "s");
+
+    testRunner.setProperty("ba", "http://ba#");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    results.get(0).assertAttributeEquals("record.count", "2");
+    Set<String> rows = new HashSet<>(Arrays.asList(IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))).split("\n")));
+    assertEquals(new HashSet<>(Arrays.asList("ba:a\tb\tdev", "c\td\te")), rows);
+  }
+
+  @Test
+  public void constructTurtle() throws IOException {
+
+    // No select vars for RDF output, the triples are written as Turtle
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.QUERY, "CONSTRUCT { ?s <http://ba#name> ?o } WHERE { GRAPH <x> { ?s ?p ?o } }");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_TURTLE.getValue());
+
+    testRunner.setProperty("ba", "http://ba#");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    results.get(0).assertAttributeEquals("mime.type", "text/turtle");
+    assertEquals("@prefix ba: <http://ba#> .\nba:a ba:name \"dev\" .\n", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void constructNQuads() throws IOException {
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.QUERY, "CONSTRUCT { ?s ?p ?o } WHERE { GRAPH <y> { ?s ?p ?o } }");
+    testRunner.setProperty(VirtuosoClient.OUTPUT_MODE, VirtuosoClient.OUTPUT_NQUADS.getValue());
+    testRunner.assertNotValid();
+    testRunner.setProperty(VirtuosoClient.RESULT_GRAPH, "${graph}");
+
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("graph", "http://example.org/copy");
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), attributes);
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals("<c> <d> <e> <http://example.org/copy> .\n", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void graphOfFlowFile() throws IOException {
+
+    // Only the graph named by the flowfile is queried
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty(VirtuosoClient.DEFAULT_GRAPHS, "${graph}");
+
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("graph", "y");
+    testRunner.enqueue(new ByteArrayInputStream("".getBytes()), attributes);
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    assertEquals("c\td\te", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void defaultGraphOfConnectionService() throws InitializationException, IOException {
+
+    VirtuosoConnectionPool service = new VirtuosoConnectionPool();
+    testRunner.addControllerService("virtuoso", service);
+    testRunner.setProperty(service, VirtuosoConnectionPool.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(service, VirtuosoConnectionPool.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(service, VirtuosoConnectionPool.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(service, VirtuosoConnectionPool.DEFAULT_GRAPH, "x");
+    testRunner.enableControllerService(service);
+
+    testRunner.setProperty(VirtuosoClient.CONNECTION_SERVICE, "virtuoso");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty("ba", "http://ba#");
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(1, results.size());
+    assertEquals("ba:a\tb\tdev", IOUtils.toString(testRunner.getContentAsByteArray(results.get(0))));
+  }
+
+  @Test
+  public void failoverToReplica() throws InitializationException, IOException {
+
+    // Nothing listens on the first address, so it is ejected and the query goes to the second one
+    VirtuosoConnectionPool service = new VirtuosoConnectionPool();
+    testRunner.addControllerService("virtuoso", service);
+    testRunner.setProperty(service, VirtuosoConnectionPool.ADDRESS, "127.0.0.1:1, " + TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(service, VirtuosoConnectionPool.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(service, VirtuosoConnectionPool.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.setProperty(service, VirtuosoConnectionPool.LOAD_BALANCING, VirtuosoConnectionPool.BALANCING_LEAST_OUTSTANDING.getValue());
+    testRunner.setProperty(service, VirtuosoConnectionPool.DEFAULT_GRAPH, "x");
+    testRunner.enableControllerService(service);
+
+    testRunner.setProperty(VirtuosoClient.CONNECTION_SERVICE, "virtuoso");
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.setProperty("ba", "http://ba#");
+    testRunner.run(2);
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(VirtuosoClient.RESULT_ROW);
+    assertEquals(2, results.size());
+    assertEquals("ba:a\tb\tdev", IOUtils.toString(testRunner.getContentAsByteArray(results.get(1))));
+  }
+
+  @Test
+  public void needsServerOrConnectionService() {
+    testRunner.setProperty(VirtuosoClient.SELECT, "s,p,o");
+    testRunner.setProperty(VirtuosoClient.SEPARATOR, "\t");
+    testRunner.setProperty(VirtuosoClient.QUERY, "SELECT ?s ?p ?o WHERE {?s ?p ?o}");
+    testRunner.assertNotValid();
+
+    testRunner.setProperty(VirtuosoClient.ADDRESS, TestConfig.getVirtuosoAddress());
+    testRunner.setProperty(VirtuosoClient.USER, TestConfig.getVirtuosoUser());
+    testRunner.setProperty(VirtuosoClient.PASSWORD, TestConfig.getVirtuosoPassword());
+    testRunner.assertValid();
+  }
 }
\ No newline at end of file
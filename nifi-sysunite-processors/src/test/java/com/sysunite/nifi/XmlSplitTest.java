@@ -20,16 +20,27 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.w3c.dom.Document;
 
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class XmlSplitTest {
 
@@ -76,4 +87,593 @@ public class XmlSplitTest {
     }
   }
 
+  @Test
+  public void testDomSplitOverMultipleFlowFiles() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+    testRunner.setProperty("generated", "/Report/@GeneratedOn");
+
+    testRunner.enqueue(contents);
+    testRunner.enqueue(contents);
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 2);
+    testRunner.assertTransferCount("prototype", 70);
+    testRunner.assertTransferCount("generated", 2);
+    for (MockFlowFile generated : testRunner.getFlowFilesForRelationship("generated")) {
+      generated.assertAttributeEquals("generated", "2016-06-22");
+    }
+  }
+
+  @Test
+  public void testInvalidXPath() {
+    testRunner.setProperty("broken", "//OBS_ProtoType[");
+    testRunner.assertNotValid();
+  }
+
+  @Test
+  public void testStreamingSplit() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_STREAMING.getValue());
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+    testRunner.setProperty("relation", "/Report/ReportPart/OBS_ProtoType/Relation_R2");
+
+    testRunner.enqueue(contents);
+    testRunner.run();
+
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+    testRunner.assertTransferCount("prototype", 35);
+    testRunner.assertTransferCount("relation", 300);
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship("prototype");
+    String first = new String(results.get(0).toByteArray(), "UTF-8");
+    assertTrue(first.contains("<OBS_ProtoType OBS_ProtoType=\"AB-CT2-N-01-Trace-Dienst geb. Noord\""));
+    assertTrue(first.endsWith("</OBS_ProtoType>"));
+  }
+
+  @Test
+  public void testStreamingMatchesDom() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("verharding.xml").getFile()));
+
+    testRunner.setProperty("geometry", "/FunctionalPhysicalObject/HasAsSubject/*");
+    testRunner.enqueue(contents);
+    testRunner.run();
+    List<MockFlowFile> dom = testRunner.getFlowFilesForRelationship("geometry");
+
+    TestRunner streamingRunner = TestRunners.newTestRunner(XmlSplit.class);
+    streamingRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_STREAMING.getValue());
+    streamingRunner.setProperty("geometry", "/FunctionalPhysicalObject/HasAsSubject/*");
+    streamingRunner.enqueue(contents);
+    streamingRunner.run();
+    List<MockFlowFile> streaming = streamingRunner.getFlowFilesForRelationship("geometry");
+
+    assertEquals(1, dom.size());
+    assertEquals(1, streaming.size());
+    assertTrue(new String(dom.get(0).toByteArray(), "UTF-8").endsWith("<Geometry id=\"8af5481e-a285-e211-a3a8-b8ac6f902f00\"/>"));
+    assertTrue(new String(streaming.get(0).toByteArray(), "UTF-8").endsWith("<Geometry id=\"8af5481e-a285-e211-a3a8-b8ac6f902f00\"></Geometry>"));
+  }
+
+  @Test
+  public void testStreamingFallsBackToDom() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_STREAMING.getValue());
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+    testRunner.setProperty("related", "/Report/ReportPart/OBS_ProtoType[Relation_R2]");
+    testRunner.assertValid();
+
+    testRunner.enqueue(contents);
+    testRunner.run();
+
+    TestRunner domRunner = TestRunners.newTestRunner(XmlSplit.class);
+    domRunner.setProperty("related", "/Report/ReportPart/OBS_ProtoType[Relation_R2]");
+    domRunner.enqueue(contents);
+    domRunner.run();
+
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+    testRunner.assertTransferCount("prototype", 35);
+    testRunner.assertTransferCount("related", domRunner.getFlowFilesForRelationship("related").size());
+  }
+
+  @Test
+  public void testPredicatesAndAttributesInEveryMode() throws IOException {
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_BYTE_RANGE.getValue()}) {
+
+      byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty("user", "//RelaticsParameter[@Name='User']");
+      runner.setProperty("userId", "/Report/ReportPart/RelaticsParameters/RelaticsParameter[@Name = \"User\"]/@Value");
+      runner.setProperty("generated", "/Report/@GeneratedOn");
+      runner.setProperty("missing", "/Report/@Missing");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      runner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+      runner.assertTransferCount("user", 1);
+      assertTrue(mode, new String(runner.getFlowFilesForRelationship("user").get(0).toByteArray(), "UTF-8")
+          .contains("Value=\"675f6903-961f-e611-80d2-000af764f30b\""));
+
+      runner.assertTransferCount("userId", 1);
+      runner.getFlowFilesForRelationship("userId").get(0).assertAttributeEquals("userId", "675f6903-961f-e611-80d2-000af764f30b");
+      runner.getFlowFilesForRelationship("generated").get(0).assertAttributeEquals("generated", "2016-06-22");
+      runner.getFlowFilesForRelationship("missing").get(0).assertAttributeEquals("missing", "");
+    }
+  }
+
+  @Test
+  public void testAttributesOnOriginal() throws IOException {
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue()}) {
+
+      byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty(XmlSplit.ATTRIBUTE_EXTRACTION, XmlSplit.ATTRIBUTES_ON_ORIGINAL.getValue());
+      runner.setProperty("generated", "/Report/@GeneratedOn");
+      runner.setProperty("reportName", "/Report/@ReportName");
+      runner.setProperty("userId", "//RelaticsParameter[@Name='User']/@Value");
+      runner.setProperty("prototype", "//OBS_ProtoType");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      runner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+      runner.assertTransferCount("generated", 0);
+      runner.assertTransferCount("reportName", 0);
+      runner.assertTransferCount("userId", 0);
+      runner.assertTransferCount("prototype", 35);
+
+      MockFlowFile original = runner.getFlowFilesForRelationship(XmlSplit.ORIGINAL).get(0);
+      original.assertAttributeEquals("generated", "2016-06-22");
+      original.assertAttributeEquals("reportName", "OBS");
+      original.assertAttributeEquals("userId", "675f6903-961f-e611-80d2-000af764f30b");
+      original.assertContentEquals(contents);
+    }
+  }
+
+  @Test
+  public void testPositionsMatchDom() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+    int[] expected = null;
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_BYTE_RANGE.getValue()}) {
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty("second", "/Report/ReportPart/RelaticsParameters/RelaticsParameter[2]");
+      runner.setProperty("firstProperty", "//Property[1]");
+      runner.setProperty("thirdNamed", "//OBS_ProtoType/Property[3]");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      int[] counts = {
+          runner.getFlowFilesForRelationship("second").size(),
+          runner.getFlowFilesForRelationship("firstProperty").size(),
+          runner.getFlowFilesForRelationship("thirdNamed").size()};
+      if (expected == null) {
+        expected = counts;
+      }
+      assertArrayEquals(mode, expected, counts);
+      assertTrue(new String(runner.getFlowFilesForRelationship("second").get(0).toByteArray(), "UTF-8").contains("Name=\"User\""));
+    }
+    assertTrue(expected[1] > 0 && expected[2] > 0);
+  }
+
+  @Test
+  public void testNestedSplitsInDocumentOrder() throws IOException {
+    byte[] contents = "<r><a id=\"1\"><a id=\"2\"><a id=\"3\"/></a></a><b><a id=\"4\"/></b></r>".getBytes();
+
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_BYTE_RANGE.getValue()}) {
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty("a", "//a");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      // an outer node comes before the nodes inside it, like in DOM mode
+      List<MockFlowFile> results = runner.getFlowFilesForRelationship("a");
+      assertEquals(mode, 4, results.size());
+      for (int i = 0; i < results.size(); i++) {
+        String split = new String(results.get(i).toByteArray(), "UTF-8");
+        assertTrue(mode + ": " + split, split.contains("<a id=\"" + (i + 1) + "\""));
+        assertTrue(mode, split.indexOf("<a id=") == split.indexOf("<a id=\"" + (i + 1) + "\""));
+        results.get(i).assertAttributeEquals("fragment.index", String.valueOf(i));
+      }
+    }
+  }
+
+  @Test
+  public void testStreamingOrderMatchesDom() throws Exception {
+    byte[] nested = ("<r><g id=\"1\"><g id=\"2\"><i n=\"a\"/><i n=\"b\"><g id=\"3\"/></i></g><i n=\"c\"/></g>"
+        + "<i n=\"d\"/><g id=\"4\"><i n=\"e\"/><i n=\"f\"/></g></r>").getBytes();
+    String[] nestedPaths = {"//g", "//g/i[1]", "//i[2]", "/r/g[1]//i", "/r/g[2]", "//i/g", "/r/*[2]"};
+    byte[] report = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+    String[] reportPaths = {"//Property[1]", "//OBS_ProtoType/Property[3]", "/Report/ReportPart/RelaticsParameters/RelaticsParameter[2]"};
+
+    DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    for (Object[] test : new Object[][]{{nested, nestedPaths}, {report, reportPaths}}) {
+      byte[] contents = (byte[]) test[0];
+      String[] paths = (String[]) test[1];
+
+      // every path on its own, which lets the streaming modes stop early, and all of them in one pass
+      List<String[]> runs = new ArrayList<>();
+      for (String path : paths) {
+        runs.add(new String[]{path});
+      }
+      runs.add(paths);
+
+      for (String[] run : runs) {
+        List<List<MockFlowFile>> dom = split(XmlSplit.MODE_DOM.getValue(), contents, run);
+        for (String mode : new String[]{XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_BYTE_RANGE.getValue()}) {
+          List<List<MockFlowFile>> streamed = split(mode, contents, run);
+          for (int path = 0; path < run.length; path++) {
+            String message = mode + " " + run[path];
+            assertEquals(message, dom.get(path).size(), streamed.get(path).size());
+            for (int i = 0; i < dom.get(path).size(); i++) {
+              streamed.get(path).get(i).assertAttributeEquals("fragment.index", String.valueOf(i));
+              Document expected = builder.parse(new ByteArrayInputStream(dom.get(path).get(i).toByteArray()));
+              Document actual = builder.parse(new ByteArrayInputStream(streamed.get(path).get(i).toByteArray()));
+              assertTrue(message + " split " + i, expected.getDocumentElement().isEqualNode(actual.getDocumentElement()));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // the splits of every path, in the order they were sent on
+  private static List<List<MockFlowFile>> split(String mode, byte[] contents, String[] paths) {
+    TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+    runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+    for (int i = 0; i < paths.length; i++) {
+      runner.setProperty("path" + i, paths[i]);
+    }
+    runner.enqueue(contents);
+    runner.run();
+
+    List<List<MockFlowFile>> splits = new ArrayList<>();
+    for (int i = 0; i < paths.length; i++) {
+      splits.add(runner.getFlowFilesForRelationship("path" + i));
+    }
+    return splits;
+  }
+
+  @Test
+  public void testPrefixedNamesSelectNothingInEveryMode() {
+    // the DOM is not namespace aware, so a prefix in the XPath never matches
+    byte[] contents = "<r xmlns:x=\"urn:x\"><x:a id=\"1\"/><b x:id=\"2\"/><c/></r>".getBytes();
+
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_BYTE_RANGE.getValue()}) {
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty("element", "//x:a");
+      runner.setProperty("predicate", "//b[@x:id]");
+      runner.setProperty("attribute", "/r/b/@x:id");
+      runner.setProperty("unprefixed", "//c");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      runner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+      runner.assertTransferCount("element", 0);
+      runner.assertTransferCount("unprefixed", 1);
+      runner.getFlowFilesForRelationship("predicate").get(0).assertAttributeEquals("predicate", "");
+      runner.getFlowFilesForRelationship("attribute").get(0).assertAttributeEquals("attribute", "");
+    }
+  }
+
+  @Test
+  public void testAttributePredicateSelectsValueInEveryMode() throws IOException {
+    // a '@' anywhere in the XPath makes it select the text of the first node, as it always has in DOM mode
+    byte[] contents = "<Root><Item type=\"y\">a</Item><Item type=\"x\">b</Item><Item type=\"x\">c</Item></Root>".getBytes();
+
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue(),
+        XmlSplit.MODE_BYTE_RANGE.getValue(), XmlSplit.MODE_PARALLEL.getValue()}) {
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty("item", "/Root/Item[@type='x']");
+      runner.setProperty("items", "/Root/Item");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      runner.assertTransferCount("item", 1);
+      MockFlowFile item = runner.getFlowFilesForRelationship("item").get(0);
+      item.assertAttributeEquals("item", "b");
+      item.assertContentEquals(contents);
+      runner.assertTransferCount("items", 3);
+    }
+  }
+
+  @Test
+  public void testStreamingStopsWhenEverythingIsSelected() {
+    // nothing after the header is read, so the broken rest of the document goes unnoticed
+    byte[] contents = "<Report GeneratedOn=\"2016-06-22\"><Header><Id>1</Id></Header><Header><Id>2</Id></Header><Part><broken".getBytes();
+
+    for (String mode : new String[]{XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_BYTE_RANGE.getValue()}) {
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty(XmlSplit.ATTRIBUTE_EXTRACTION, XmlSplit.ATTRIBUTES_ON_ORIGINAL.getValue());
+      runner.setProperty("generated", "/Report/@GeneratedOn");
+      runner.setProperty("header", "/Report/Header[1]");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      runner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+      runner.getFlowFilesForRelationship(XmlSplit.ORIGINAL).get(0).assertAttributeEquals("generated", "2016-06-22");
+      runner.assertTransferCount("header", 1);
+      assertTrue(mode, new String(runner.getFlowFilesForRelationship("header").get(0).toByteArray()).endsWith("<Header><Id>1</Id></Header>"));
+    }
+  }
+
+  @Test
+  public void testByteRangeSplit() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+    String document = new String(contents, "UTF-8");
+
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_BYTE_RANGE.getValue());
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+    testRunner.setProperty("parameter", "/Report/ReportPart/RelaticsParameters/RelaticsParameter");
+
+    testRunner.enqueue(contents);
+    testRunner.run();
+
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+    testRunner.assertTransferCount("prototype", 35);
+    testRunner.assertTransferCount("parameter", 2);
+
+    // the splits are the untouched bytes of the original document
+    int start = document.indexOf("<OBS_ProtoType ");
+    int end = document.indexOf("</OBS_ProtoType>") + "</OBS_ProtoType>".length();
+    testRunner.getFlowFilesForRelationship("prototype").get(0).assertContentEquals(document.substring(start, end));
+    testRunner.getFlowFilesForRelationship("parameter").get(1).assertContentEquals(
+        "<RelaticsParameter Name=\"User\" Value=\"675f6903-961f-e611-80d2-000af764f30b\" DisplayValue=\"Leiwakabessy, E. (Eles)\" />");
+  }
+
+  @Test
+  public void testByteRangeSkipsMarkupInCommentsAndCData() {
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_BYTE_RANGE.getValue());
+    testRunner.setProperty("b", "//b");
+
+    testRunner.enqueue("<?xml version=\"1.0\"?><!DOCTYPE a [<!ENTITY e \"<b>\">]><a><!-- <b> --><![CDATA[<b>]]><b x=\"1>2\"/><?pi <b>?><b>x</b></a>".getBytes());
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship("b");
+    assertEquals(2, results.size());
+    results.get(0).assertContentEquals("<b x=\"1>2\"/>");
+    results.get(1).assertContentEquals("<b>x</b>");
+  }
+
+  @Test
+  public void testBatchedNodes() throws Exception {
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue()}) {
+
+      byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty(XmlSplit.NODES_PER_FLOWFILE, "10");
+      runner.setProperty(XmlSplit.BATCH_ROOT_ELEMENT, "prototypes");
+      runner.setProperty("prototype", "//OBS_ProtoType");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      List<MockFlowFile> results = runner.getFlowFilesForRelationship("prototype");
+      assertEquals(mode, 4, results.size());
+
+      DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      int[] expectedNodes = {10, 10, 10, 5};
+      for (int i = 0; i < results.size(); i++) {
+        MockFlowFile result = results.get(i);
+        result.assertAttributeEquals("fragment.index", String.valueOf(i));
+        result.assertAttributeEquals("fragment.count", "4");
+        result.assertAttributeEquals("fragment.identifier", results.get(0).getAttribute("fragment.identifier"));
+
+        Document batch = builder.parse(new ByteArrayInputStream(result.toByteArray()));
+        assertEquals("prototypes", batch.getDocumentElement().getNodeName());
+        assertEquals(mode, expectedNodes[i], batch.getDocumentElement().getChildNodes().getLength());
+      }
+    }
+  }
+
+  @Test
+  public void testParallelMatchesDom() throws IOException {
+
+    StringBuilder document = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<export generated=\"2016-06-22\">\n");
+    for (int i = 0; i < 500; i++) {
+      document.append("  <record id=\"").append(i).append("\"><name>record ").append(i).append("</name><value>").append(i * 7).append("</value></record>\n");
+    }
+    byte[] contents = document.append("</export>").toString().getBytes("UTF-8");
+
+    TestRunner domRunner = TestRunners.newTestRunner(XmlSplit.class);
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_PARALLEL.getValue());
+    testRunner.setProperty(XmlSplit.CHUNK_SIZE, "1 KB");
+    testRunner.setProperty(XmlSplit.PARALLELISM, "4");
+    for (TestRunner runner : new TestRunner[]{testRunner, domRunner}) {
+      runner.setProperty("record", "/export/record");
+      runner.setProperty("large", "//record[value > 3000]/name");
+      runner.setProperty("generated", "/export/@generated");
+      runner.enqueue(contents);
+      runner.run();
+    }
+
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 1);
+    for (String relationship : new String[]{"record", "large"}) {
+      List<MockFlowFile> dom = domRunner.getFlowFilesForRelationship(relationship);
+      List<MockFlowFile> parallel = testRunner.getFlowFilesForRelationship(relationship);
+      assertEquals(relationship, dom.size(), parallel.size());
+      for (int i = 0; i < dom.size(); i++) {
+        parallel.get(i).assertContentEquals(dom.get(i).toByteArray());
+        parallel.get(i).assertAttributeEquals("fragment.index", String.valueOf(i));
+      }
+    }
+    testRunner.assertTransferCount("record", 500);
+    testRunner.assertTransferCount("large", 71);
+    testRunner.getFlowFilesForRelationship("generated").get(0).assertAttributeEquals("generated", "2016-06-22");
+  }
+
+  @Test
+  public void testParallelWithoutRecords() {
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_PARALLEL.getValue());
+    testRunner.setProperty("generated", "/export/@generated");
+
+    testRunner.enqueue("<export generated=\"2016-06-22\"/>".getBytes());
+    testRunner.enqueue("<export generated=\"2016-06-23\"> </export>".getBytes());
+    testRunner.run(2);
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship("generated");
+    results.get(0).assertAttributeEquals("generated", "2016-06-22");
+    results.get(1).assertAttributeEquals("generated", "2016-06-23");
+  }
+
+  @Test
+  public void testJsonOutput() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+    List<String> expected = null;
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue(), XmlSplit.MODE_PARALLEL.getValue()}) {
+      TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+      runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+      runner.setProperty(XmlSplit.OUTPUT_FORMAT, XmlSplit.FORMAT_JSON.getValue());
+      runner.setProperty("parameter", "/Report/ReportPart/RelaticsParameters/RelaticsParameter");
+      runner.setProperty("prototype", "//OBS_ProtoType");
+
+      runner.enqueue(contents);
+      runner.run();
+
+      List<MockFlowFile> parameters = runner.getFlowFilesForRelationship("parameter");
+      assertEquals(mode, 2, parameters.size());
+      parameters.get(1).assertContentEquals(
+          "{\"@DisplayValue\":\"Leiwakabessy, E. (Eles)\",\"@Name\":\"User\",\"@Value\":\"675f6903-961f-e611-80d2-000af764f30b\"}");
+      parameters.get(1).assertAttributeEquals("mime.type", "application/json");
+
+      // nested prototypes are emitted when they end while streaming, so only compare what is emitted
+      List<String> prototypes = new ArrayList<>();
+      for (MockFlowFile prototype : runner.getFlowFilesForRelationship("prototype")) {
+        prototypes.add(new String(prototype.toByteArray(), "UTF-8"));
+      }
+      Collections.sort(prototypes);
+      assertEquals(mode, 35, prototypes.size());
+      if (expected == null) {
+        expected = prototypes;
+      }
+      assertEquals(mode, expected, prototypes);
+    }
+    assertTrue(String.join("\n", expected).contains("\"@OBS_ProtoType\":\"AB-CT2-N-01-Trace-Dienst geb. Noord\""));
+  }
+
+  @Test
+  public void testNdjsonBatches() throws IOException {
+
+    byte[] contents = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("slagboom.xml").getFile()));
+
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_STREAMING.getValue());
+    testRunner.setProperty(XmlSplit.OUTPUT_FORMAT, XmlSplit.FORMAT_NDJSON.getValue());
+    testRunner.setProperty(XmlSplit.NODES_PER_FLOWFILE, "10");
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+
+    testRunner.enqueue(contents);
+    testRunner.run();
+
+    List<MockFlowFile> results = testRunner.getFlowFilesForRelationship("prototype");
+    assertEquals(4, results.size());
+    int[] expectedLines = {10, 10, 10, 5};
+    for (int i = 0; i < results.size(); i++) {
+      String content = new String(results.get(i).toByteArray(), "UTF-8");
+      assertTrue(content.endsWith("}\n"));
+      assertEquals(expectedLines[i], content.split("\n").length);
+      results.get(i).assertAttributeEquals("mime.type", "application/x-ndjson");
+    }
+  }
+
+  @Test
+  public void testByteRangeRejectsJson() {
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_BYTE_RANGE.getValue());
+    testRunner.setProperty(XmlSplit.OUTPUT_FORMAT, XmlSplit.FORMAT_JSON.getValue());
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+    testRunner.assertNotValid();
+  }
+
+  @Test
+  public void testBatchSize() {
+    testRunner.setProperty(XmlSplit.BATCH_SIZE, "3");
+    testRunner.setProperty("item", "/message/item");
+    testRunner.setProperty("id", "/message/@id");
+
+    for (int i = 0; i < 5; i++) {
+      testRunner.enqueue(("<message id=\"" + i + "\"><item>a</item><item>b</item></message>").getBytes());
+    }
+
+    testRunner.run();
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 3);
+    testRunner.assertTransferCount("item", 6);
+    testRunner.assertTransferCount("id", 3);
+
+    testRunner.run();
+    testRunner.assertTransferCount(XmlSplit.ORIGINAL, 5);
+    testRunner.assertTransferCount("item", 10);
+    List<MockFlowFile> ids = testRunner.getFlowFilesForRelationship("id");
+    for (int i = 0; i < ids.size(); i++) {
+      ids.get(i).assertAttributeEquals("id", String.valueOf(i));
+    }
+  }
+
+  /**
+   * Throughput of small messages for a few batch sizes, run with -Dxmlsplit.benchmark=true
+   */
+  @Test
+  public void benchmarkSmallMessages() {
+    Assume.assumeTrue(Boolean.getBoolean("xmlsplit.benchmark"));
+
+    final int messages = 2000;
+    final byte[] message = "<message id=\"42\"><item>a</item><item>b</item></message>".getBytes();
+
+    for (String mode : new String[]{XmlSplit.MODE_DOM.getValue(), XmlSplit.MODE_STREAMING.getValue()}) {
+      for (int batchSize : new int[]{1, 10, 100}) {
+        TestRunner runner = TestRunners.newTestRunner(XmlSplit.class);
+        runner.setProperty(XmlSplit.SPLIT_MODE, mode);
+        runner.setProperty(XmlSplit.BATCH_SIZE, String.valueOf(batchSize));
+        runner.setProperty(XmlSplit.ATTRIBUTE_EXTRACTION, XmlSplit.ATTRIBUTES_ON_ORIGINAL.getValue());
+        runner.setProperty("item", "/message/item");
+        runner.setProperty("id", "/message/@id");
+        for (int i = 0; i < messages; i++) {
+          runner.enqueue(message);
+        }
+
+        // schedule the processor once and trigger it directly, the scheduling of the mock framework would dominate otherwise
+        long start = System.nanoTime();
+        runner.run(1, false, true);
+        while (runner.getQueueSize().getObjectCount() > 0) {
+          runner.getProcessor().onTrigger(runner.getProcessContext(), runner.getProcessSessionFactory());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        runner.assertTransferCount(XmlSplit.ORIGINAL, messages);
+        System.out.println(String.format("%s, batch size %d: %.0f FlowFiles/sec", mode, batchSize, messages / (elapsed / 1e9)));
+      }
+    }
+  }
+
+  @Test
+  public void testByteRangeRejectsBatching() {
+    testRunner.setProperty(XmlSplit.SPLIT_MODE, XmlSplit.MODE_BYTE_RANGE.getValue());
+    testRunner.setProperty(XmlSplit.NODES_PER_FLOWFILE, "2");
+    testRunner.setProperty("prototype", "//OBS_ProtoType");
+    testRunner.assertNotValid();
+  }
 }